@@ -1,4 +1,5 @@
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -6,6 +7,36 @@ import java.security.SignatureException;
 
 public class Crypto {
 
+    /**
+     * Per-thread verification engine. Provider lookup in {@code Signature.getInstance} is only paid
+     * once per thread, and {@code initVerify} is skipped while the same key is reused.
+     */
+    private static class Verifier {
+        private final Signature sig = newSignature();
+        private PublicKey key;
+
+        boolean verify(PublicKey pubKey, byte[] message, byte[] signature)
+                throws InvalidKeyException, SignatureException {
+            if (pubKey != key) {
+                key = null;
+                sig.initVerify(pubKey);
+                key = pubKey;
+            }
+            try {
+                sig.update(message);
+                return sig.verify(signature);
+            } catch (SignatureException | RuntimeException e) {
+                // the engine state is unknown after a failure, force a fresh initVerify
+                key = null;
+                throw e;
+            }
+        }
+    }
+
+    private static final ThreadLocal<Verifier> VERIFIER = ThreadLocal.withInitial(Verifier::new);
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(Crypto::newDigest);
+
     /**
      * Verifies if {@code signature} is a valid digital signature of {@code message} under the
      * public key {@code pubKey}. Uses RSA with SHA-256.
@@ -17,13 +48,47 @@ public class Crypto {
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
         try {
-            Signature sig = Signature.getInstance("SHA256withRSA");
-            sig.initVerify(pubKey);
-            sig.update(message);
-            return sig.verify(signature);
-        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+            return VERIFIER.get().verify(pubKey, message, signature);
+        } catch (InvalidKeyException | SignatureException e) {
             e.printStackTrace();
             return false;
         }
     }
+
+    /**
+     * Computes the SHA-256 digest of {@code data} with this thread's digest instance.
+     * 
+     * @param data the bytes to hash
+     * @return the 32-byte digest
+     */
+    public static byte[] sha256(byte[] data) {
+        MessageDigest md = sha256Digest();
+        return md.digest(data);
+    }
+
+    /**
+     * Returns this thread's reusable SHA-256 digest, reset and ready for {@code update}. It must
+     * not be shared with other threads or kept across calls.
+     */
+    public static MessageDigest sha256Digest() {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md;
+    }
+
+    private static Signature newSignature() {
+        try {
+            return Signature.getInstance("SHA256withRSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA256withRSA not supported", e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not supported", e);
+        }
+    }
 }
@@ -0,0 +1,67 @@
+import java.security.*;
+
+/**
+ * Compares the per-call {@code getInstance} path with the thread-local engines in {@link Crypto}.
+ *
+ * Run with: java CryptoBenchmark [iterations]
+ */
+public class CryptoBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        KeyPair kp = keyGen.generateKeyPair();
+
+        // A signed transaction whose input is verified over and over
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addOutput(5.0, kp.getPublic());
+        tx.addOutput(4.5, kp.getPublic());
+        byte[] message = tx.getRawDataToSign(0);
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(kp.getPrivate());
+        signer.update(message);
+        byte[] signature = signer.sign();
+
+        // Warm up both paths before measuring
+        for (int round = 0; round < 2; round++) {
+            boolean measure = round == 1;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                verifyWithNewInstance(kp.getPublic(), message, signature);
+            report(measure, "verify, getInstance per call", start, iterations);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                Crypto.verifySignature(kp.getPublic(), message, signature);
+            report(measure, "verify, thread-local engine", start, iterations);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                MessageDigest.getInstance("SHA-256").digest(message);
+            report(measure, "sha256, getInstance per call", start, iterations);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                Crypto.sha256(message);
+            report(measure, "sha256, thread-local digest", start, iterations);
+        }
+    }
+
+    // The verification path used before the engines were cached
+    private static boolean verifyWithNewInstance(PublicKey pubKey, byte[] message, byte[] signature)
+            throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initVerify(pubKey);
+        sig.update(message);
+        return sig.verify(signature);
+    }
+
+    private static void report(boolean measure, String name, long start, int iterations) {
+        if (!measure) return;
+        double nsPerOp = (double) (System.nanoTime() - start) / iterations;
+        System.out.println(String.format("%-32s %10.1f ns/op", name, nsPerOp));
+    }
+}
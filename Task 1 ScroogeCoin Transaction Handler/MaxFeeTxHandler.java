@@ -1,56 +1,38 @@
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
 
 public class MaxFeeTxHandler {
     private UTXOPool utxoPool;
+    private SignatureCache signatureCache;
 
     public MaxFeeTxHandler(UTXOPool utxoPool) {
-        // Defensive copy of UTXO pool
-        this.utxoPool = new UTXOPool(utxoPool);
+        this(utxoPool, SignatureCache.shared());
     }
 
-    // Calculate the fee of a transaction = sum(inputs) - sum(outputs)
-    private double getTxFee(Transaction tx) {
-        double inputSum = 0;
-        double outputSum = 0;
-
-        for (int i = 0; i < tx.numInputs(); i++) {
-            Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-            Transaction.Output prevOut = utxoPool.getTxOutput(utxo);
-            if (prevOut != null) {
-                inputSum += prevOut.value;
-            } else {
-                // Input not found in UTXO pool — invalid input
-                return -1;
-            }
-        }
-
-        for (Transaction.Output out : tx.getOutputs()) {
-            outputSum += out.value;
-        }
-
-        return inputSum - outputSum; // fee
+    public MaxFeeTxHandler(UTXOPool utxoPool, SignatureCache signatureCache) {
+        // Defensive copy of UTXO pool
+        this.utxoPool = new UTXOPool(utxoPool);
+        this.signatureCache = signatureCache;
     }
 
     // Check if transaction is valid (reusing TxHandler's isValidTx logic)
     private boolean isValidTx(Transaction tx) {
         double inputSum = 0, outputSum = 0;
-        HashSet<UTXO> seen = new HashSet<>();
+        if (tx.hasDuplicateInputs()) return false;
 
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-
-            if (!utxoPool.contains(utxo) || seen.contains(utxo)) return false;
+            PublicKey address = utxoPool.getAddress(in.prevTxHash, in.outputIndex);
+            if (address == null) return false;
 
-            Transaction.Output prevOut = utxoPool.getTxOutput(utxo);
-            if (!Crypto.verifySignature(prevOut.address, tx.getRawDataToSign(i), in.signature)) return false;
+            if (!signatureCache.verifySignature(tx, i, address)) return false;
 
-            inputSum += prevOut.value;
-            seen.add(utxo);
+            inputSum += utxoPool.getValue(in.prevTxHash, in.outputIndex);
         }
 
         for (Transaction.Output out : tx.getOutputs()) {
@@ -61,44 +43,205 @@ public class MaxFeeTxHandler {
         return inputSum >= outputSum;
     }
 
+    // A transaction's ancestor-package fee and fee rate at the time it was pushed on the heap
+    private static class Candidate {
+        final int index;
+        final double fee;
+        final double feeRate;
+        final int version;
+
+        Candidate(int index, double fee, long size, int version) {
+            this.index = index;
+            this.fee = fee;
+            this.feeRate = fee / size;
+            this.version = version;
+        }
+    }
+
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
+        int n = possibleTxs.length;
+
+        // Index the batch by hash so inputs can be resolved to in-batch parents
+        HashMap<ByteArrayWrapper, Integer> byHash = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            Transaction tx = possibleTxs[i];
+            if (tx != null && tx.getHash() != null)
+                byHash.putIfAbsent(new ByteArrayWrapper(tx.getHash()), i);
+        }
+
+        // Fee, size and in-batch parents of every transaction, computed once
+        double[] fee = new double[n];
+        int[] size = new int[n];
+        int[][] parents = new int[n][];
+        boolean[] dead = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            Transaction tx = possibleTxs[i];
+            if (tx == null) {
+                dead[i] = true;
+                parents[i] = new int[0];
+                continue;
+            }
+            LinkedHashSet<Integer> txParents = new LinkedHashSet<>();
+            double inputSum = 0;
+            for (Transaction.Input in : tx.getInputs()) {
+                Transaction.Output prevOut = utxoPool.getTxOutput(in.prevTxHash, in.outputIndex);
+                Integer parent = in.prevTxHash == null ? null : byHash.get(new ByteArrayWrapper(in.prevTxHash));
+                if (prevOut == null && parent != null && parent != i
+                        && in.outputIndex >= 0 && in.outputIndex < possibleTxs[parent].numOutputs()) {
+                    prevOut = possibleTxs[parent].getOutput(in.outputIndex);
+                    txParents.add(parent);
+                }
+                if (prevOut == null) {
+                    // Spends an output that exists neither in the pool nor in this batch
+                    dead[i] = true;
+                    break;
+                }
+                inputSum += prevOut.value;
+            }
+            double outputSum = 0;
+            for (Transaction.Output out : tx.getOutputs())
+                outputSum += out.value;
+            fee[i] = inputSum - outputSum;
+            if (fee[i] < 0)
+                dead[i] = true;
+            size[i] = Math.max(1, tx.getRawTxSize());
+            parents[i] = toArray(txParents);
+        }
 
-        // Sort transactions by fee descending
-        Arrays.sort(possibleTxs, new Comparator<Transaction>() {
+        // Ancestors of every transaction, parents before children, from a topological order
+        int[][] ancestors = new int[n][];
+        ArrayList<ArrayList<Integer>> descendants = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            descendants.add(new ArrayList<>());
+        for (int i : topologicalOrder(parents, dead)) {
+            LinkedHashSet<Integer> txAncestors = new LinkedHashSet<>();
+            for (int parent : parents[i]) {
+                if (dead[parent])
+                    dead[i] = true;
+                for (int a : ancestors[parent])
+                    txAncestors.add(a);
+                txAncestors.add(parent);
+            }
+            ancestors[i] = toArray(txAncestors);
+            for (int a : ancestors[i])
+                descendants.get(a).add(i);
+        }
+
+        // Score every transaction by the fee of itself plus its not-yet-included ancestors. There is
+        // no size budget here, so the package fee ranks first and the fee rate only breaks ties
+        double[] packageFee = new double[n];
+        long[] packageSize = new long[n];
+        int[] version = new int[n];
+        PriorityQueue<Candidate> heap = new PriorityQueue<>(Math.max(1, n), new Comparator<Candidate>() {
             @Override
-            public int compare(Transaction t1, Transaction t2) {
-                double fee1 = getTxFee(t1);
-                double fee2 = getTxFee(t2);
-                return Double.compare(fee2, fee1); // Descending order
+            public int compare(Candidate c1, Candidate c2) {
+                int c = Double.compare(c2.fee, c1.fee);
+                if (c == 0)
+                    c = Double.compare(c2.feeRate, c1.feeRate);
+                return c != 0 ? c : Integer.compare(c1.index, c2.index);
             }
         });
+        for (int i = 0; i < n; i++) {
+            if (dead[i]) continue;
+            packageFee[i] = fee[i];
+            packageSize[i] = size[i];
+            for (int a : ancestors[i]) {
+                packageFee[i] += fee[a];
+                packageSize[i] += size[a];
+            }
+            heap.add(new Candidate(i, packageFee[i], packageSize[i], 0));
+        }
+
+        // Take the best package, then re-score the descendants of what was included
+        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
+        boolean[] included = new boolean[n];
+        while (!heap.isEmpty()) {
+            Candidate best = heap.poll();
+            int i = best.index;
+            if (dead[i] || included[i] || best.version != version[i]) continue;
+
+            int[] pkg = Arrays.copyOf(ancestors[i], ancestors[i].length + 1);
+            pkg[ancestors[i].length] = i;
+            for (int member : pkg) {
+                if (included[member]) continue;
+                Transaction tx = possibleTxs[member];
+                if (!isValidTx(tx)) {
+                    // Its parents are already in, so it can never become valid; nor can its descendants
+                    dead[member] = true;
+                    for (int d : descendants.get(member))
+                        dead[d] = true;
+                    break;
+                }
 
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-
-            for (Transaction tx : possibleTxs) {
-                if (!acceptedTxs.contains(tx) && isValidTx(tx)) {
-                    acceptedTxs.add(tx);
-                    changed = true;
-
-                    // Remove inputs (spent outputs) from pool
-                    for (Transaction.Input in : tx.getInputs()) {
-                        UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-                        utxoPool.removeUTXO(utxo);
-                    }
-
-                    // Add outputs as new UTXOs
-                    byte[] txHash = tx.getHash();
-                    for (int i = 0; i < tx.numOutputs(); i++) {
-                        UTXO utxo = new UTXO(txHash, i);
-                        utxoPool.addUTXO(utxo, tx.getOutput(i));
-                    }
+                included[member] = true;
+                acceptedTxs.add(tx);
+                updateUTXOPool(tx);
+                for (int d : descendants.get(member)) {
+                    if (dead[d] || included[d]) continue;
+                    packageFee[d] -= fee[member];
+                    packageSize[d] -= size[member];
+                    heap.add(new Candidate(d, packageFee[d], packageSize[d], ++version[d]));
                 }
             }
         }
 
         return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
     }
+
+    // Kahn's algorithm over the in-batch parent graph; transactions on a cycle are marked dead
+    private static int[] topologicalOrder(int[][] parents, boolean[] dead) {
+        int n = parents.length;
+        int[] pending = new int[n];
+        ArrayList<ArrayList<Integer>> children = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            children.add(new ArrayList<>());
+        for (int i = 0; i < n; i++) {
+            pending[i] = parents[i].length;
+            for (int parent : parents[i])
+                children.get(parent).add(i);
+        }
+
+        int[] order = new int[n];
+        int head = 0, tail = 0;
+        for (int i = 0; i < n; i++) {
+            if (pending[i] == 0)
+                order[tail++] = i;
+        }
+        while (head < tail) {
+            int i = order[head++];
+            for (int child : children.get(i)) {
+                if (--pending[child] == 0)
+                    order[tail++] = child;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (pending[i] > 0)
+                dead[i] = true;
+        }
+        return Arrays.copyOf(order, tail);
+    }
+
+    private static int[] toArray(LinkedHashSet<Integer> set) {
+        int[] array = new int[set.size()];
+        int k = 0;
+        for (int value : set)
+            array[k++] = value;
+        return array;
+    }
+
+    // Remove the spent outputs of an accepted transaction and add its new outputs
+    private void updateUTXOPool(Transaction tx) {
+        // Remove inputs (spent outputs) from pool
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            utxoPool.removeUTXO(utxo);
+        }
+
+        // Add outputs as new UTXOs
+        byte[] txHash = tx.getHash();
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            UTXO utxo = new UTXO(txHash, i);
+            utxoPool.addUTXO(utxo, tx.getOutput(i));
+        }
+    }
 }
\ No newline at end of file
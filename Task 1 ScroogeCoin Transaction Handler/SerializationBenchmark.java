@@ -0,0 +1,123 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Measures bytes allocated and time per call of getRawTx and getRawDataToSign against the boxed
+ * ArrayList<Byte> encoding they used to be built with.
+ *
+ * Run with: java SerializationBenchmark [iterations]
+ */
+public class SerializationBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        KeyPair kp = keyGen.generateKeyPair();
+
+        // Two inputs, three outputs, signed
+        Transaction tx = new Transaction();
+        tx.addInput(new byte[32], 0);
+        tx.addInput(new byte[32], 1);
+        for (int i = 0; i < 3; i++)
+            tx.addOutput(1.0 + i, kp.getPublic());
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(kp.getPrivate());
+        for (int i = 0; i < tx.numInputs(); i++) {
+            signer.update(tx.getRawDataToSign(i));
+            tx.addSignature(signer.sign(), i);
+        }
+
+        if (!Arrays.equals(boxedRawTx(tx), tx.getRawTx())
+                || !Arrays.equals(boxedRawDataToSign(tx, 0), tx.getRawDataToSign(0))) {
+            throw new IllegalStateException("Encodings differ");
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up both paths before measuring
+        for (int round = 0; round < 2; round++) {
+            boolean measure = round == 1;
+            int sink = 0;
+
+            long bytes = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += boxedRawTx(tx).length;
+            report(measure, "getRawTx, boxed", start, threads.getThreadAllocatedBytes(threadId) - bytes, iterations);
+
+            bytes = threads.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += tx.getRawTx().length;
+            report(measure, "getRawTx, pre-sized", start, threads.getThreadAllocatedBytes(threadId) - bytes, iterations);
+
+            bytes = threads.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += boxedRawDataToSign(tx, i & 1).length;
+            report(measure, "getRawDataToSign, boxed", start, threads.getThreadAllocatedBytes(threadId) - bytes, iterations);
+
+            bytes = threads.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += tx.getRawDataToSign(i & 1).length;
+            report(measure, "getRawDataToSign, pre-sized", start, threads.getThreadAllocatedBytes(threadId) - bytes, iterations);
+
+            if (sink == 0) System.out.println();
+        }
+    }
+
+    // The getRawTx encoding as it was built before
+    private static byte[] boxedRawTx(Transaction tx) {
+        ArrayList<Byte> rawTx = new ArrayList<>();
+        for (Transaction.Input in : tx.getInputs()) {
+            addAll(rawTx, in.prevTxHash);
+            addAll(rawTx, ByteBuffer.allocate(Integer.BYTES).putInt(in.outputIndex).array());
+            addAll(rawTx, in.signature);
+        }
+        for (Transaction.Output op : tx.getOutputs()) {
+            addAll(rawTx, ByteBuffer.allocate(Double.BYTES).putDouble(op.value).array());
+            addAll(rawTx, op.address.getEncoded());
+        }
+        return unbox(rawTx);
+    }
+
+    // The getRawDataToSign encoding as it was built before
+    private static byte[] boxedRawDataToSign(Transaction tx, int index) {
+        ArrayList<Byte> sigData = new ArrayList<>();
+        Transaction.Input in = tx.getInput(index);
+        addAll(sigData, in.prevTxHash);
+        addAll(sigData, ByteBuffer.allocate(Integer.BYTES).putInt(in.outputIndex).array());
+        for (Transaction.Output op : tx.getOutputs()) {
+            addAll(sigData, ByteBuffer.allocate(Double.BYTES).putDouble(op.value).array());
+            addAll(sigData, op.address.getEncoded());
+        }
+        return unbox(sigData);
+    }
+
+    private static void addAll(ArrayList<Byte> list, byte[] bytes) {
+        if (bytes != null)
+            for (byte b : bytes)
+                list.add(b);
+    }
+
+    private static byte[] unbox(ArrayList<Byte> list) {
+        byte[] bytes = new byte[list.size()];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = list.get(i);
+        return bytes;
+    }
+
+    private static void report(boolean measure, String name, long start, long allocated, int iterations) {
+        if (!measure) return;
+        double nsPerOp = (double) (System.nanoTime() - start) / iterations;
+        double bytesPerOp = (double) allocated / iterations;
+        System.out.println(String.format("%-30s %10.1f ns/op %10.1f B/op", name, nsPerOp, bytesPerOp));
+    }
+}
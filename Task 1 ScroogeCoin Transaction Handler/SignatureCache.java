@@ -0,0 +1,129 @@
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of successful signature verifications, keyed by the SHA-256 of the data the
+ * input signs, the public key of the claimed output and the signature. The digest is computed
+ * from the transaction every time, never taken from its hash, so a transaction claiming the hash
+ * of one verified before still has its own contents checked.
+ *
+ * A transaction is verified when a block is built from the {@code TransactionPool}, again when
+ * the block is added to the chain and again on every fork that replays it; with this cache only
+ * the first of these pays for the RSA check. The least recently used entries are evicted once
+ * the capacity is reached. Failed verifications are never cached.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final SignatureCache SHARED = new SignatureCache(DEFAULT_CAPACITY);
+
+    /** (SHA-256 of the signed data, pubKey, signature) of a verified input */
+    private static class Key {
+        private final byte[] digest;
+        private final PublicKey pubKey;
+        private final byte[] signature;
+        private final int hashCode;
+
+        Key(byte[] digest, PublicKey pubKey, byte[] signature) {
+            this.digest = digest;
+            this.pubKey = pubKey;
+            this.signature = signature;
+            this.hashCode = 31 * (31 * Arrays.hashCode(digest) + pubKey.hashCode()) + Arrays.hashCode(signature);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other)
+                return true;
+            if (other == null || getClass() != other.getClass())
+                return false;
+            Key key = (Key) other;
+            return Arrays.equals(digest, key.digest) && pubKey.equals(key.pubKey)
+                    && Arrays.equals(signature, key.signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /** verified keys, in access order */
+    private final LinkedHashMap<Key, Boolean> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache holding at most {@code capacity} verified inputs */
+    public SignatureCache(final int capacity) {
+        entries = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** @return the cache shared by all handlers of this process */
+    public static SignatureCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return true if the signature of input {@code index} of {@code tx} is valid under
+     *         {@code pubKey}, answering from the cache when this input was verified before
+     */
+    public boolean verifySignature(Transaction tx, int index, PublicKey pubKey) {
+        byte[] signature = tx.getInput(index).signature;
+        byte[] message = tx.getRawDataToSign(index);
+        if (message == null || signature == null)
+            return Crypto.verifySignature(pubKey, message, signature);
+
+        Key key = new Key(Crypto.sha256(message), pubKey, signature.clone());
+        boolean cached;
+        synchronized (entries) {
+            cached = entries.get(key) != null;
+        }
+        if (cached) {
+            hits.incrementAndGet();
+            return true;
+        }
+
+        misses.incrementAndGet();
+        if (!Crypto.verifySignature(pubKey, message, signature))
+            return false;
+        synchronized (entries) {
+            entries.put(key, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    /** @return the number of verifications answered from the cache */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of verifications that had to run the RSA check */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the number of verified inputs currently cached */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /** Drops all entries and resets the counters */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+}
@@ -0,0 +1,65 @@
+import java.security.*;
+
+public class TestSignatureCache {
+    public static void main(String[] args) throws Exception {
+        // Generate key pairs for the owner and for an attacker
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        KeyPair kp = keyGen.generateKeyPair();
+        PublicKey pubKey = kp.getPublic();
+        PublicKey attackerKey = keyGen.generateKeyPair().getPublic();
+
+        // Step 1: Create initial UTXO pool with genesis transaction
+        UTXOPool utxoPool = new UTXOPool();
+        Transaction genesisTx = new Transaction();
+        genesisTx.addOutput(10.0, pubKey);
+        genesisTx.finalizeTx();
+        utxoPool.addUTXO(new UTXO(genesisTx.getHash(), 0), genesisTx.getOutput(0));
+
+        // Step 2: Create and sign a transaction spending the genesis output
+        Transaction tx = new Transaction();
+        tx.addInput(genesisTx.getHash(), 0);
+        tx.addOutput(9.0, pubKey);
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(kp.getPrivate());
+        sig.update(tx.getRawDataToSign(0));
+        byte[] signature = sig.sign();
+        tx.addSignature(signature, 0);
+        tx.finalizeTx();
+
+        // Step 3: Verify it once to warm the cache, then again from the cache
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_CAPACITY);
+        TxHandler handler = new TxHandler(utxoPool, cache);
+        check("signed transaction is valid", handler.isValidTx(tx));
+        check("second check is a cache hit", handler.isValidTx(tx) && cache.getHits() == 1);
+
+        // Step 4: Same input and signature, outputs redirected, hash copied from the original
+        Transaction forged = new Transaction();
+        forged.addInput(genesisTx.getHash(), 0);
+        forged.addOutput(9.0, attackerKey);
+        forged.addSignature(signature, 0);
+        forged.setHash(tx.getHash());
+        long misses = cache.getMisses();
+        check("forged transaction is rejected", !handler.isValidTx(forged));
+        check("forged transaction ran the RSA check", cache.getMisses() == misses + 1);
+        check("forged transaction is not cached", !cache.verifySignature(forged, 0, pubKey));
+
+        // Step 5: A different signature over the same data is not answered from the cache
+        byte[] garbled = signature.clone();
+        garbled[garbled.length - 1] ^= 1;
+        Transaction tampered = new Transaction();
+        tampered.addInput(genesisTx.getHash(), 0);
+        tampered.addOutput(9.0, pubKey);
+        tampered.addSignature(garbled, 0);
+        tampered.finalizeTx();
+        check("garbled signature is rejected", !handler.isValidTx(tampered));
+
+        System.out.println("Signature cache checks passed");
+    }
+
+    private static void check(String what, boolean ok) {
+        System.out.println(what + ": " + (ok ? "ok" : "FAILED"));
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,140 @@
+import java.security.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class TestTxScheduler {
+    public static void main(String[] args) throws Exception {
+        // Generate a few key pairs to own the outputs
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        KeyPair[] owners = new KeyPair[3];
+        for (int i = 0; i < owners.length; i++)
+            owners[i] = keyGen.generateKeyPair();
+        Random random = new Random(1);
+
+        // Random epochs of chained, conflicting and invalid transactions in shuffled order
+        int acceptedTotal = 0, txTotal = 0;
+        for (int epoch = 0; epoch < 40; epoch++) {
+            UTXOPool utxoPool = new UTXOPool();
+            List<Transaction> txs = epoch(utxoPool, owners, random);
+
+            Transaction[] expected = fixedPointLoop(utxoPool, txs.toArray(new Transaction[0]));
+            Transaction[] accepted = new TxHandler(utxoPool).handleTxs(txs.toArray(new Transaction[0]));
+
+            check("epoch " + epoch + " accepts the same number of transactions", accepted.length == expected.length);
+            for (int i = 0; i < accepted.length; i++)
+                check("epoch " + epoch + " accepts the same transaction at " + i, accepted[i] == expected[i]);
+            acceptedTotal += accepted.length;
+            txTotal += txs.size();
+        }
+        System.out.println("Scheduler matches the fixed-point loop: " + acceptedTotal + " of " + txTotal
+                + " transactions accepted in 40 epochs");
+    }
+
+    /**
+     * Funds utxoPool and returns transactions spending from it and from each other, some spending
+     * an output twice, overspending or signed by the wrong key, shuffled
+     */
+    private static List<Transaction> epoch(UTXOPool utxoPool, KeyPair[] owners, Random random) throws Exception {
+        Transaction funding = new Transaction();
+        for (int i = 0; i < 6; i++)
+            funding.addOutput(10.0, owners[random.nextInt(owners.length)].getPublic());
+        funding.finalizeTx();
+
+        List<Transaction> sources = new ArrayList<>();  // transactions whose outputs can be spent
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < funding.numOutputs(); i++) {
+            utxoPool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+            sources.add(funding);
+            indices.add(i);
+        }
+
+        List<Transaction> txs = new ArrayList<>();
+        for (int t = 0; t < 25; t++) {
+            Transaction tx = new Transaction();
+            List<KeyPair> signers = new ArrayList<>();
+            double inputSum = 0;
+            for (int k = 0, inputs = 1 + random.nextInt(2); k < inputs; k++) {
+                // Mostly unspent outputs, sometimes one that another transaction already spends
+                int pick = random.nextInt(sources.size());
+                Transaction source = sources.get(pick);
+                int index = indices.get(pick);
+                if (random.nextInt(5) != 0) {
+                    sources.remove(pick);
+                    indices.remove(pick);
+                }
+                Transaction.Output prevOut = source.getOutput(index);
+                tx.addInput(source.getHash(), index);
+                signers.add(owner(owners, prevOut.address));
+                inputSum += prevOut.value;
+                if (sources.isEmpty()) break;
+            }
+            double outputSum = random.nextInt(8) == 0 ? inputSum + 1 : inputSum * (0.5 + random.nextDouble() / 2);
+            int outputs = 1 + random.nextInt(3);
+            for (int o = 0; o < outputs; o++)
+                tx.addOutput(outputSum / outputs, owners[random.nextInt(owners.length)].getPublic());
+            for (int k = 0; k < tx.numInputs(); k++) {
+                KeyPair signer = random.nextInt(10) == 0 ? owners[random.nextInt(owners.length)] : signers.get(k);
+                tx.addSignature(sign(signer.getPrivate(), tx.getRawDataToSign(k)), k);
+            }
+            tx.finalizeTx();
+            txs.add(tx);
+            for (int o = 0; o < outputs; o++) {
+                sources.add(tx);
+                indices.add(o);
+            }
+            if (sources.isEmpty()) break;
+        }
+        // The same transaction twice is accepted once
+        txs.add(txs.get(random.nextInt(txs.size())));
+        Collections.shuffle(txs, random);
+        return txs;
+    }
+
+    /** The handleTxs loop the scheduler replaced: rescan every transaction until a pass accepts none */
+    private static Transaction[] fixedPointLoop(UTXOPool initialPool, Transaction[] possibleTxs) {
+        UTXOPool utxoPool = new UTXOPool(initialPool);
+        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+
+            for (Transaction tx : possibleTxs) {
+                if (!acceptedTxs.contains(tx) && new TxHandler(utxoPool).isValidTx(tx)) {
+                    acceptedTxs.add(tx);
+                    changed = true;
+
+                    for (Transaction.Input in : tx.getInputs())
+                        utxoPool.removeUTXO(new UTXO(in.prevTxHash, in.outputIndex));
+                    for (int i = 0; i < tx.numOutputs(); i++)
+                        utxoPool.addUTXO(new UTXO(tx.getHash(), i), tx.getOutput(i));
+                }
+            }
+        }
+
+        return acceptedTxs.toArray(new Transaction[0]);
+    }
+
+    private static KeyPair owner(KeyPair[] owners, PublicKey address) {
+        for (KeyPair owner : owners) {
+            if (owner.getPublic().equals(address))
+                return owner;
+        }
+        throw new IllegalArgumentException("unknown owner");
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] data) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(key);
+        sig.update(data);
+        return sig.sign();
+    }
+
+    private static void check(String what, boolean ok) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -1,9 +1,8 @@
 import java.nio.ByteBuffer;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 
 public class Transaction {
 
@@ -43,10 +42,23 @@ public class Transaction {
         /** Recipient's public key */
         public PublicKey address;
 
+        /** Encoding of the address used by the raw formats, rebuilt if address is reassigned */
+        private AddressBytes encodedAddress;
+
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
+
+        /** Returns the encoded form of the address, computed once per key */
+        byte[] getEncodedAddress() {
+            AddressBytes enc = encodedAddress;
+            if (enc == null || enc.key != address) {
+                enc = new AddressBytes(address);
+                encodedAddress = enc;
+            }
+            return enc.bytes;
+        }
     }
 
     /** Unique hash (id) of this transaction */
@@ -87,14 +99,41 @@ public class Transaction {
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            if (ut.matches(in.prevTxHash, in.outputIndex)) {
                 inputs.remove(i);
                 return;
             }
         }
     }
 
+    /** Up to this many inputs, repeated claims are looked for pairwise rather than with a set */
+    private static final int PAIRWISE_DUPLICATE_CHECK = 16;
+
+    /**
+     * Returns true if two inputs claim the same output.
+     */
+    public boolean hasDuplicateInputs() {
+        int n = inputs.size();
+        if (n > PAIRWISE_DUPLICATE_CHECK) {
+            HashSet<UTXO> claimed = new HashSet<>();
+            for (Input in : inputs) {
+                if (in.prevTxHash != null && !claimed.add(new UTXO(in.prevTxHash, in.outputIndex)))
+                    return true;
+            }
+            return false;
+        }
+        for (int i = 1; i < n; i++) {
+            Input in = inputs.get(i);
+            for (int j = 0; j < i; j++) {
+                Input other = inputs.get(j);
+                if (in.outputIndex == other.outputIndex && in.prevTxHash != null
+                        && Arrays.equals(in.prevTxHash, other.prevTxHash))
+                    return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Returns the data to be signed for input at index.
      * This includes the input info plus all outputs.
@@ -102,35 +141,20 @@ public class Transaction {
     public byte[] getRawDataToSign(int index) {
         if (index >= inputs.size()) return null;
 
-        ArrayList<Byte> sigData = new ArrayList<>();
         Input in = inputs.get(index);
-
         byte[] prevTxHash = in.prevTxHash;
+        int size = Integer.BYTES + rawOutputsSize();
         if (prevTxHash != null)
-            for (byte b : prevTxHash)
-                sigData.add(b);
-
-        ByteBuffer b = ByteBuffer.allocate(Integer.BYTES);
-        b.putInt(in.outputIndex);
-        for (byte bVal : b.array())
-            sigData.add(bVal);
+            size += prevTxHash.length;
 
-        for (Output op : outputs) {
-            ByteBuffer valBuffer = ByteBuffer.allocate(Double.BYTES);
-            valBuffer.putDouble(op.value);
-            for (byte bVal : valBuffer.array())
-                sigData.add(bVal);
-
-            byte[] addrBytes = op.address.getEncoded();
-            for (byte bVal : addrBytes)
-                sigData.add(bVal);
-        }
-
-        byte[] sigD = new byte[sigData.size()];
-        for (int i = 0; i < sigData.size(); i++)
-            sigD[i] = sigData.get(i);
+        // Written straight into one pre-sized buffer
+        ByteBuffer sigData = ByteBuffer.allocate(size);
+        if (prevTxHash != null)
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        putRawOutputs(sigData);
 
-        return sigD;
+        return sigData.array();
     }
 
     /**
@@ -140,58 +164,63 @@ public class Transaction {
         inputs.get(index).addSignature(signature);
     }
 
+    /**
+     * Returns the length of getRawTx, computed without building it.
+     */
+    public int getRawTxSize() {
+        int size = rawOutputsSize();
+        for (Input in : inputs) {
+            size += Integer.BYTES;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
+        }
+        return size;
+    }
+
     /**
      * Returns the raw transaction data including all inputs (with signatures) and outputs.
      */
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<>();
-
+        ByteBuffer rawTx = ByteBuffer.allocate(getRawTxSize());
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            if (prevTxHash != null)
-                for (byte b : prevTxHash)
-                    rawTx.add(b);
-
-            ByteBuffer b = ByteBuffer.allocate(Integer.BYTES);
-            b.putInt(in.outputIndex);
-            for (byte bVal : b.array())
-                rawTx.add(bVal);
-
-            byte[] signature = in.signature;
-            if (signature != null)
-                for (byte bVal : signature)
-                    rawTx.add(bVal);
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
         }
+        putRawOutputs(rawTx);
 
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.BYTES);
-            b.putDouble(op.value);
-            for (byte bVal : b.array())
-                rawTx.add(bVal);
-
-            byte[] addrBytes = op.address.getEncoded();
-            for (byte bVal : addrBytes)
-                rawTx.add(bVal);
-        }
+        return rawTx.array();
+    }
 
-        byte[] tx = new byte[rawTx.size()];
-        for (int i = 0; i < rawTx.size(); i++)
-            tx[i] = rawTx.get(i);
+    /**
+     * Returns the number of bytes written by putRawOutputs.
+     */
+    private int rawOutputsSize() {
+        int size = 0;
+        for (Output op : outputs)
+            size += Double.BYTES + op.getEncodedAddress().length;
+        return size;
+    }
 
-        return tx;
+    /**
+     * Writes the value and encoded address of every output, as they are signed and hashed.
+     */
+    private void putRawOutputs(ByteBuffer buf) {
+        for (Output op : outputs) {
+            buf.putDouble(op.value);
+            buf.put(op.getEncodedAddress());
+        }
     }
 
     /**
      * Computes and sets the hash of the transaction using SHA-256 over raw transaction data.
      */
     public void finalizeTx() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace(System.err);
-        }
+        hash = Crypto.sha256(getRawTx());
     }
 
     public void setHash(byte[] h) {
@@ -231,4 +260,17 @@ public class Transaction {
     public int numOutputs() {
         return outputs.size();
     }
+
+    /**
+     * Immutable pair of a key and its encoding, safe to publish to verifier threads.
+     */
+    private static class AddressBytes {
+        private final PublicKey key;
+        private final byte[] bytes;
+
+        AddressBytes(PublicKey key) {
+            this.key = key;
+            this.bytes = key.getEncoded();
+        }
+    }
 }
@@ -1,14 +1,24 @@
-import java.util.ArrayList;
-import java.util.HashSet;
+
+import java.security.PublicKey;
 
 public class TxHandler {
     private UTXOPool utxoPool;
+    private SignatureCache signatureCache;
 
     /**
      * Creates a TxHandler with a defensive copy of the given UTXOPool.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, SignatureCache.shared());
+    }
+
+    /**
+     * Creates a TxHandler with a defensive copy of the given UTXOPool that remembers successful
+     * signature verifications in the given cache.
+     */
+    public TxHandler(UTXOPool utxoPool, SignatureCache signatureCache) {
         this.utxoPool = new UTXOPool(utxoPool);
+        this.signatureCache = signatureCache;
     }
 
     /**
@@ -21,26 +31,27 @@ public class TxHandler {
      */
     public boolean isValidTx(Transaction tx) {
         double inputSum = 0, outputSum = 0;
-        HashSet<UTXO> seenUTXOs = new HashSet<>();
+
+        // Rule 3: no UTXO claimed twice
+        if (tx.hasDuplicateInputs()) {
+            return false;
+        }
 
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input in = tx.getInput(i);
-            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
 
-            // Rule 1 and 3: UTXO must be in pool and not already claimed
-            if (!utxoPool.contains(utxo) || seenUTXOs.contains(utxo)) {
+            // Rule 1: UTXO must be in pool, read without building a UTXO or an Output
+            PublicKey address = utxoPool.getAddress(in.prevTxHash, in.outputIndex);
+            if (address == null) {
                 return false;
             }
 
-            Transaction.Output prevOut = utxoPool.getTxOutput(utxo);
-
-            // Rule 2: Verify signature
-            if (!Crypto.verifySignature(prevOut.address, tx.getRawDataToSign(i), in.signature)) {
+            // Rule 2: Verify signature (answered from the cache if verified before)
+            if (!signatureCache.verifySignature(tx, i, address)) {
                 return false;
             }
 
-            inputSum += prevOut.value;
-            seenUTXOs.add(utxo);
+            inputSum += utxoPool.getValue(in.prevTxHash, in.outputIndex);
         }
 
         // Rule 4 and 5: Check outputs and sums
@@ -60,33 +71,23 @@ public class TxHandler {
      * accepted and updates the UTXO pool accordingly.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
-
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-
-            for (Transaction tx : possibleTxs) {
-                if (!acceptedTxs.contains(tx) && isValidTx(tx)) {
-                    acceptedTxs.add(tx);
-                    changed = true;
-
-                    // Remove spent UTXOs from pool
-                    for (Transaction.Input in : tx.getInputs()) {
-                        UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
-                        utxoPool.removeUTXO(utxo);
-                    }
+        // Re-check a transaction only when one of its parents has just been accepted
+        return TxScheduler.schedule(possibleTxs, this::isValidTx, this::updateUTXOPool);
+    }
 
-                    // Add new UTXOs from transaction outputs
-                    byte[] txHash = tx.getHash();
-                    for (int i = 0; i < tx.numOutputs(); i++) {
-                        UTXO utxo = new UTXO(txHash, i);
-                        utxoPool.addUTXO(utxo, tx.getOutput(i));
-                    }
-                }
-            }
+    /** Removes the UTXOs spent by tx from the pool and adds the ones it creates */
+    private void updateUTXOPool(Transaction tx) {
+        // Remove spent UTXOs from pool
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            utxoPool.removeUTXO(utxo);
         }
 
-        return acceptedTxs.toArray(new Transaction[0]);
+        // Add new UTXOs from transaction outputs
+        byte[] txHash = tx.getHash();
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            UTXO utxo = new UTXO(txHash, i);
+            utxoPool.addUTXO(utxo, tx.getOutput(i));
+        }
     }
 }
@@ -2,25 +2,68 @@ import java.util.Arrays;
 
 public class UTXO implements Comparable<UTXO> {
 
-    /** Hash of the transaction from which this UTXO originates */
-    private final byte[] txHash;
+    /** Length of the transaction hashes kept inline, the size of a SHA-256 digest */
+    static final int INLINE_HASH_LENGTH = 32;
+
+    /** Hash of the transaction from which this UTXO originates, as four big-endian longs */
+    private final long h0, h1, h2, h3;
+
+    /** Hash of the transaction if it is not INLINE_HASH_LENGTH bytes long, null otherwise */
+    private final byte[] otherHash;
 
     /** Index of the corresponding output in the transaction */
     private final int index;
 
+    /** Cached hash code */
+    private final int hash;
+
     /**
      * Creates a new UTXO corresponding to the output with given index in the transaction whose hash is txHash.
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        if (txHash.length == INLINE_HASH_LENGTH) {
+            h0 = readLong(txHash, 0);
+            h1 = readLong(txHash, 8);
+            h2 = readLong(txHash, 16);
+            h3 = readLong(txHash, 24);
+            otherHash = null;
+        } else {
+            h0 = h1 = h2 = h3 = 0;
+            otherHash = Arrays.copyOf(txHash, txHash.length);
+        }
         this.index = index;
+        this.hash = hashCode(txHash, index);
     }
 
-    /** Returns the transaction hash of this UTXO */
+    /** Returns a copy of the transaction hash of this UTXO */
     public byte[] getTxHash() {
+        if (otherHash != null)
+            return otherHash.clone();
+        byte[] txHash = new byte[INLINE_HASH_LENGTH];
+        writeLong(txHash, 0, h0);
+        writeLong(txHash, 8, h1);
+        writeLong(txHash, 16, h2);
+        writeLong(txHash, 24, h3);
         return txHash;
     }
 
+    /** Returns the length in bytes of the transaction hash of this UTXO */
+    public int getTxHashLength() {
+        return otherHash != null ? otherHash.length : INLINE_HASH_LENGTH;
+    }
+
+    /** Writes the transaction hash of this UTXO into dst at off, without copying it first */
+    public void writeTxHash(byte[] dst, int off) {
+        if (otherHash != null) {
+            System.arraycopy(otherHash, 0, dst, off, otherHash.length);
+            return;
+        }
+        writeLong(dst, off, h0);
+        writeLong(dst, off + 8, h1);
+        writeLong(dst, off + 16, h2);
+        writeLong(dst, off + 24, h3);
+    }
+
     /** Returns the index of this UTXO */
     public int getIndex() {
         return index;
@@ -35,15 +78,34 @@ public class UTXO implements Comparable<UTXO> {
         if (other == null || getClass() != other.getClass()) return false;
 
         UTXO utxo = (UTXO) other;
+        if (hash != utxo.hash || index != utxo.index) return false;
+        if (otherHash != null || utxo.otherHash != null) return Arrays.equals(otherHash, utxo.otherHash);
+        return h0 == utxo.h0 && h1 == utxo.h1 && h2 == utxo.h2 && h3 == utxo.h3;
+    }
 
-        return index == utxo.index && Arrays.equals(txHash, utxo.txHash);
+    /**
+     * Checks whether this is the output with given index of the transaction whose hash is txHash,
+     * without building a UTXO for it.
+     */
+    public boolean matches(byte[] txHash, int index) {
+        if (txHash == null || this.index != index) return false;
+        if (otherHash != null || txHash.length != INLINE_HASH_LENGTH) return Arrays.equals(otherHash, txHash);
+        return h0 == readLong(txHash, 0) && h1 == readLong(txHash, 8)
+                && h2 == readLong(txHash, 16) && h3 == readLong(txHash, 24);
     }
 
     /**
-     * Hash code consistent with equals.
+     * Hash code consistent with equals, computed once at construction.
      */
     @Override
     public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Returns the hash code of the UTXO (txHash, index) without building it.
+     */
+    public static int hashCode(byte[] txHash, int index) {
         int result = 17;
         result = 31 * result + index;
         result = 31 * result + Arrays.hashCode(txHash);
@@ -58,12 +120,46 @@ public class UTXO implements Comparable<UTXO> {
         if (this.index < utxo.index) return -1;
         if (this.index > utxo.index) return 1;
 
-        // Indices are equal, compare txHash byte arrays lexicographically
-        for (int i = 0; i < Math.min(this.txHash.length, utxo.txHash.length); i++) {
-            int b1 = this.txHash[i] & 0xff;
-            int b2 = utxo.txHash[i] & 0xff;
+        // Indices are equal, compare txHash bytes lexicographically
+        int len1 = getTxHashLength();
+        int len2 = utxo.getTxHashLength();
+        for (int i = 0; i < Math.min(len1, len2); i++) {
+            int b1 = byteAt(i) & 0xff;
+            int b2 = utxo.byteAt(i) & 0xff;
             if (b1 != b2) return b1 - b2;
         }
-        return this.txHash.length - utxo.txHash.length;
+        return len1 - len2;
+    }
+
+    /** Returns true if the transaction hash is kept inline as four longs */
+    boolean hasInlineHash() {
+        return otherHash == null;
+    }
+
+    /** Returns long i (0 to 3) of an inline transaction hash */
+    long hashWord(int i) {
+        return i == 0 ? h0 : i == 1 ? h1 : i == 2 ? h2 : h3;
+    }
+
+    private byte byteAt(int i) {
+        if (otherHash != null) return otherHash[i];
+        long word = i < 8 ? h0 : i < 16 ? h1 : i < 24 ? h2 : h3;
+        return (byte) (word >>> (56 - 8 * (i & 7)));
+    }
+
+    /** Returns the big-endian long at offset off of b */
+    static long readLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (b[off + i] & 0xff);
+        return v;
+    }
+
+    /** Writes v big-endian at offset off of b */
+    static void writeLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
     }
 }
@@ -1,52 +1,130 @@
+import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
 
 public class UTXOPool {
 
+    /** How a pool stores its UTXOs */
+    public enum Backend {
+        /** HashMap from UTXO to output */
+        HASH_MAP,
+        /** Primitive-array open-addressing table: no objects per entry, copies clone the arrays */
+        TABLE
+    }
+
     /**
-     * The current collection of UTXOs, each mapped to its corresponding transaction output
+     * The current collection of UTXOs, each mapped to its corresponding transaction output.
+     * Null when the pool uses the TABLE backend.
      */
     private HashMap<UTXO, Transaction.Output> H;
 
+    /** The UTXOs of a pool using the TABLE backend, null otherwise */
+    private UTXOTable table;
+
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<>();
+        this(Backend.HASH_MAP);
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new empty UTXOPool storing its UTXOs in the given backend */
+    public UTXOPool(Backend backend) {
+        if (backend == Backend.TABLE)
+            table = new UTXOTable(0);
+        else
+            H = new HashMap<>();
+    }
+
+    /** Creates a new UTXOPool that is a copy of {@code uPool} with the same backend */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<>(uPool.H);
+        if (uPool.table != null)
+            table = new UTXOTable(uPool.table);
+        else
+            H = new HashMap<>(uPool.H);
+    }
+
+    /** Returns the backend this pool stores its UTXOs in */
+    public Backend getBackend() {
+        return table != null ? Backend.TABLE : Backend.HASH_MAP;
     }
 
     /**
      * Adds a mapping from UTXO {@code utxo} to transaction output {@code txOut} to the pool
      */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        if (table != null)
+            table.put(utxo, txOut);
+        else
+            H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        if (table != null)
+            table.remove(utxo);
+        else
+            H.remove(utxo);
     }
 
     /**
      * Returns the transaction output corresponding to UTXO {@code utxo}, or null if {@code utxo} is
-     * not in the pool.
+     * not in the pool. A TABLE pool returns a new Output equal to the one added.
      */
     public Transaction.Output getTxOutput(UTXO utxo) {
-        return H.get(utxo);
+        return table != null ? table.get(utxo) : H.get(utxo);
+    }
+
+    /**
+     * Returns the output with index {@code index} of the transaction whose hash is {@code txHash},
+     * or null if it is not in the pool. A TABLE pool probes its slots with the hash directly; a
+     * HASH_MAP pool builds the UTXO to look it up.
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        if (table != null)
+            return table.get(txHash, index);
+        return txHash == null ? null : H.get(new UTXO(txHash, index));
+    }
+
+    /**
+     * Returns the recipient of the output with index {@code index} of the transaction whose hash
+     * is {@code txHash}, or null if it is not in the pool. A TABLE pool reads it without building
+     * an Output.
+     */
+    public PublicKey getAddress(byte[] txHash, int index) {
+        if (table != null)
+            return table.getAddress(txHash, index);
+        Transaction.Output txOut = getTxOutput(txHash, index);
+        return txOut == null ? null : txOut.address;
+    }
+
+    /**
+     * Returns the value of the output with index {@code index} of the transaction whose hash is
+     * {@code txHash}, or NaN if it is not in the pool. A TABLE pool reads it without building an
+     * Output.
+     */
+    public double getValue(byte[] txHash, int index) {
+        if (table != null)
+            return table.getValue(txHash, index);
+        Transaction.Output txOut = getTxOutput(txHash, index);
+        return txOut == null ? Double.NaN : txOut.value;
     }
 
     /** Returns true if UTXO {@code utxo} is in the pool, false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return table != null ? table.containsKey(utxo) : H.containsKey(utxo);
+    }
+
+    /** Returns true if the UTXO (txHash, index) is in the pool, without building it */
+    public boolean contains(byte[] txHash, int index) {
+        return getTxOutput(txHash, index) != null;
+    }
+
+    /** Returns the number of UTXOs in the pool */
+    public int size() {
+        return table != null ? table.size() : H.size();
     }
 
     /** Returns an ArrayList of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> utxoSet = H.keySet();
-        return new ArrayList<>(utxoSet);
+        return table != null ? table.keys() : new ArrayList<>(H.keySet());
     }
 }
@@ -0,0 +1,83 @@
+import java.security.*;
+import java.util.Random;
+
+/**
+ * Measures retained heap per UTXO (outputs included where a backend keeps them), lookup time as
+ * validation looks inputs up, and copy time of the UTXOPool backends.
+ *
+ * Run with: java -Xmx2g UTXOPoolBenchmark [entries] [distinct keys]
+ */
+public class UTXOPoolBenchmark {
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int lookups = 2000000;
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        PublicKey[] keys = new PublicKey[keyCount];
+        for (int i = 0; i < keyCount; i++)
+            keys[i] = keyGen.generateKeyPair().getPublic();
+
+        // Outpoints of entries / 2 transactions with two outputs each, built once and shared
+        Random random = new Random(1);
+        byte[][] txHashes = new byte[(entries + 1) / 2][32];
+        for (byte[] h : txHashes)
+            random.nextBytes(h);
+        byte[][] missHashes = new byte[1024][32];
+        for (byte[] h : missHashes)
+            random.nextBytes(h);
+        Transaction owner = new Transaction();
+
+        System.out.println(String.format("%d UTXOs, %d distinct keys", entries, keyCount));
+        long sink = 0;
+        for (int round = 0; round < 2; round++) {
+            boolean measure = round == 1;
+
+            for (UTXOPool.Backend backend : UTXOPool.Backend.values()) {
+                long before = usedHeap();
+                UTXOPool pool = new UTXOPool(backend);
+                for (int i = 0; i < entries; i++)
+                    pool.addUTXO(new UTXO(txHashes[i >> 1], i & 1), owner.new Output(i, keys[i % keyCount]));
+                long poolBytes = usedHeap() - before;
+
+                long start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    int e = (int) ((i * 2654435761L) % entries);
+                    sink += pool.getAddress(txHashes[e >> 1], e & 1) != null ? 1 : 0;
+                }
+                long lookup = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < lookups; i++)
+                    sink += pool.contains(missHashes[i & 1023], i & 1) ? 1 : 0;
+                long miss = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                sink += new UTXOPool(pool).size();
+                long copy = System.nanoTime() - start;
+
+                if (measure) {
+                    report(backend.toString(), poolBytes, entries, lookup, lookups, copy);
+                    System.out.println(String.format("%-10s %10.1f ns/miss", "", (double) miss / lookups));
+                }
+            }
+            if (sink == 42) System.out.println();
+        }
+    }
+
+    // Heap in use after letting the collector settle
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void report(String name, long bytes, int entries, long lookupNanos, int lookups, long copyNanos) {
+        System.out.println(String.format("%-10s %10.1f B/UTXO %10.1f ns/lookup %10.1f ms/copy",
+                name, (double) bytes / entries, (double) lookupNanos / lookups, copyNanos / 1e6));
+    }
+}
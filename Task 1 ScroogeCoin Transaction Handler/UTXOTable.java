@@ -0,0 +1,288 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Mutable UTXO set kept in parallel primitive arrays with open addressing (linear probing).
+ *
+ * A slot holds the four longs of the transaction hash, the output index, the cached UTXO hash
+ * code, the output value and the id of the recipient's public key in a shared, deduplicated key
+ * table. No object is kept per entry, so a large set is a handful of arrays to the garbage
+ * collector instead of millions of small objects. Outputs are rebuilt by get, so the table hands
+ * out equal but not identical Output objects; getValue and getAddress read a slot without
+ * building anything and are what validation uses.
+ *
+ * UTXOs whose transaction hash is not 32 bytes long are kept in a small overflow map.
+ */
+public class UTXOTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /** Tables grow past this fraction of slots in use, in eighths */
+    private static final int MAX_LOAD_EIGHTHS = 7;
+
+    /** Outputs are inner objects of Transaction, this one owns the rebuilt ones */
+    private static final Transaction OUTPUT_OWNER = new Transaction();
+
+    // Per slot; keyIds[slot] == 0 marks an empty slot, otherwise it is the key id plus one
+    private long[] words;
+    private int[] indices;
+    private int[] hashes;
+    private double[] values;
+    private int[] keyIds;
+
+    private int mask;
+    private int size;
+    private final KeyTable keyTable;
+    private HashMap<UTXO, Transaction.Output> overflow;
+
+    /** Creates an empty table with room for about expectedSize UTXOs before it grows */
+    public UTXOTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (maxSize(capacity) < expectedSize)
+            capacity <<= 1;
+        allocate(capacity);
+        keyTable = new KeyTable();
+        overflow = new HashMap<>();
+    }
+
+    /** Creates a copy of table that shares its public-key table */
+    public UTXOTable(UTXOTable table) {
+        words = table.words.clone();
+        indices = table.indices.clone();
+        hashes = table.hashes.clone();
+        values = table.values.clone();
+        keyIds = table.keyIds.clone();
+        mask = table.mask;
+        size = table.size;
+        keyTable = table.keyTable;
+        overflow = new HashMap<>(table.overflow);
+    }
+
+    /** Returns the number of UTXOs in the table */
+    public int size() {
+        return size + overflow.size();
+    }
+
+    /** Returns the number of distinct public keys seen by this table and its copies */
+    public int keyCount() {
+        return keyTable.size();
+    }
+
+    /** Maps utxo to txOut, replacing any previous output */
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (!utxo.hasInlineHash()) {
+            overflow.put(utxo, txOut);
+            return;
+        }
+        int keyId = keyTable.idOf(txOut.address) + 1;
+        int slot = find(utxo.hashWord(0), utxo.hashWord(1), utxo.hashWord(2), utxo.hashWord(3),
+                utxo.getIndex(), utxo.hashCode());
+        if (keyIds[slot] == 0) {
+            words[4 * slot] = utxo.hashWord(0);
+            words[4 * slot + 1] = utxo.hashWord(1);
+            words[4 * slot + 2] = utxo.hashWord(2);
+            words[4 * slot + 3] = utxo.hashWord(3);
+            indices[slot] = utxo.getIndex();
+            hashes[slot] = utxo.hashCode();
+            size++;
+        }
+        values[slot] = txOut.value;
+        keyIds[slot] = keyId;
+        if (size > maxSize(mask + 1))
+            resize((mask + 1) << 1);
+    }
+
+    /** Removes utxo from the table */
+    public void remove(UTXO utxo) {
+        if (!utxo.hasInlineHash()) {
+            overflow.remove(utxo);
+            return;
+        }
+        int slot = find(utxo.hashWord(0), utxo.hashWord(1), utxo.hashWord(2), utxo.hashWord(3),
+                utxo.getIndex(), utxo.hashCode());
+        if (keyIds[slot] == 0)
+            return;
+        size--;
+        // Shift later entries of the probe run back so no lookup stops at the hole
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keyIds[next] != 0; next = (next + 1) & mask) {
+            int home = spread(hashes[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+        keyIds[hole] = 0;
+    }
+
+    /** Returns a new output equal to the one of utxo, or null */
+    public Transaction.Output get(UTXO utxo) {
+        if (!utxo.hasInlineHash())
+            return overflow.get(utxo);
+        int slot = find(utxo.hashWord(0), utxo.hashWord(1), utxo.hashWord(2), utxo.hashWord(3),
+                utxo.getIndex(), utxo.hashCode());
+        int keyId = keyIds[slot];
+        return keyId == 0 ? null : OUTPUT_OWNER.new Output(values[slot], keyTable.get(keyId - 1));
+    }
+
+    /** Returns a new output equal to the one of the UTXO (txHash, index), or null */
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (txHash == null)
+            return null;
+        if (txHash.length != UTXO.INLINE_HASH_LENGTH)
+            return overflowGet(txHash, index);
+        int slot = find(txHash, index);
+        int keyId = keyIds[slot];
+        return keyId == 0 ? null : OUTPUT_OWNER.new Output(values[slot], keyTable.get(keyId - 1));
+    }
+
+    /** Returns the recipient of the output of the UTXO (txHash, index), or null if it is not in the table */
+    public PublicKey getAddress(byte[] txHash, int index) {
+        if (txHash == null)
+            return null;
+        if (txHash.length != UTXO.INLINE_HASH_LENGTH) {
+            Transaction.Output txOut = overflowGet(txHash, index);
+            return txOut == null ? null : txOut.address;
+        }
+        int keyId = keyIds[find(txHash, index)];
+        return keyId == 0 ? null : keyTable.get(keyId - 1);
+    }
+
+    /** Returns the value of the output of the UTXO (txHash, index), or NaN if it is not in the table */
+    public double getValue(byte[] txHash, int index) {
+        if (txHash == null)
+            return Double.NaN;
+        if (txHash.length != UTXO.INLINE_HASH_LENGTH) {
+            Transaction.Output txOut = overflowGet(txHash, index);
+            return txOut == null ? Double.NaN : txOut.value;
+        }
+        int slot = find(txHash, index);
+        return keyIds[slot] == 0 ? Double.NaN : values[slot];
+    }
+
+    /** Returns true if utxo is in the table */
+    public boolean containsKey(UTXO utxo) {
+        if (!utxo.hasInlineHash())
+            return overflow.containsKey(utxo);
+        int slot = find(utxo.hashWord(0), utxo.hashWord(1), utxo.hashWord(2), utxo.hashWord(3),
+                utxo.getIndex(), utxo.hashCode());
+        return keyIds[slot] != 0;
+    }
+
+    /** Returns all UTXOs in the table, in no particular order */
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<>(size());
+        byte[] txHash = new byte[UTXO.INLINE_HASH_LENGTH];
+        for (int slot = 0; slot <= mask; slot++) {
+            if (keyIds[slot] == 0) continue;
+            for (int w = 0; w < 4; w++)
+                UTXO.writeLong(txHash, 8 * w, words[4 * slot + w]);
+            keys.add(new UTXO(txHash, indices[slot]));
+        }
+        keys.addAll(overflow.keySet());
+        return keys;
+    }
+
+    private Transaction.Output overflowGet(byte[] txHash, int index) {
+        return overflow.isEmpty() ? null : overflow.get(new UTXO(txHash, index));
+    }
+
+    /** Returns the slot holding the UTXO (txHash, index), txHash being 32 bytes long, or the empty slot where it would go */
+    private int find(byte[] txHash, int index) {
+        return find(UTXO.readLong(txHash, 0), UTXO.readLong(txHash, 8), UTXO.readLong(txHash, 16),
+                UTXO.readLong(txHash, 24), index, UTXO.hashCode(txHash, index));
+    }
+
+    /** Returns the slot holding the given UTXO, or the empty slot where it would go */
+    private int find(long w0, long w1, long w2, long w3, int index, int hash) {
+        int slot = spread(hash) & mask;
+        while (keyIds[slot] != 0) {
+            int base = 4 * slot;
+            if (hashes[slot] == hash && indices[slot] == index && words[base] == w0
+                    && words[base + 1] == w1 && words[base + 2] == w2 && words[base + 3] == w3)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void move(int from, int to) {
+        System.arraycopy(words, 4 * from, words, 4 * to, 4);
+        indices[to] = indices[from];
+        hashes[to] = hashes[from];
+        values[to] = values[from];
+        keyIds[to] = keyIds[from];
+    }
+
+    private void allocate(int capacity) {
+        words = new long[4 * capacity];
+        indices = new int[capacity];
+        hashes = new int[capacity];
+        values = new double[capacity];
+        keyIds = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private void resize(int capacity) {
+        long[] oldWords = words;
+        int[] oldIndices = indices;
+        int[] oldHashes = hashes;
+        double[] oldValues = values;
+        int[] oldKeyIds = keyIds;
+        allocate(capacity);
+        for (int old = 0; old < oldKeyIds.length; old++) {
+            if (oldKeyIds[old] == 0) continue;
+            int slot = spread(oldHashes[old]) & mask;
+            while (keyIds[slot] != 0)
+                slot = (slot + 1) & mask;
+            System.arraycopy(oldWords, 4 * old, words, 4 * slot, 4);
+            indices[slot] = oldIndices[old];
+            hashes[slot] = oldHashes[old];
+            values[slot] = oldValues[old];
+            keyIds[slot] = oldKeyIds[old];
+        }
+    }
+
+    /** Number of UTXOs a table of capacity slots holds before it grows */
+    private static int maxSize(int capacity) {
+        return (int) ((long) capacity * MAX_LOAD_EIGHTHS / 8);
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Append-only table of distinct public keys, shared by a table and its copies. Appends are
+     * synchronized; lookups only read the volatile array, which is republished after every append.
+     */
+    private static class KeyTable {
+        private final HashMap<PublicKey, Integer> ids = new HashMap<>();
+        private volatile PublicKey[] keys = new PublicKey[16];
+
+        synchronized int idOf(PublicKey key) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = ids.size();
+                PublicKey[] k = keys;
+                if (id == k.length)
+                    k = Arrays.copyOf(k, 2 * k.length);
+                k[id] = key;
+                keys = k;
+                ids.put(key, id);
+            }
+            return id;
+        }
+
+        PublicKey get(int id) {
+            return keys[id];
+        }
+
+        synchronized int size() {
+            return ids.size();
+        }
+    }
+}
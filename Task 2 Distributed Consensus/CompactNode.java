@@ -0,0 +1,75 @@
+import java.util.*;
+
+/**
+ * Reference node for the compact mode of {@link Simulation}: it implements the bitset methods of
+ * {@link Node} as well as the set ones, so a compact round goes through no conversion and
+ * allocates nothing. It proposes every transaction it has and takes in every transaction its
+ * followees propose; both modes end up with the same sets.
+ */
+public class CompactNode implements Node {
+    private Set<Transaction> pending = new HashSet<>();
+    private TransactionUniverse universe;  // of the compact rounds, null before the first one
+    private long[] bits;                   // pending over universe, null before the first compact round
+
+    /** Only the proposals of followees are delivered, so the node keeps no list of its own */
+    @Override
+    public void setFollowees(boolean[] followees) {
+    }
+
+    @Override
+    public void setFollowees(int[] followees, int numNodes) {
+    }
+
+    @Override
+    public void setPendingTransaction(Set<Transaction> pendingTransactions) {
+        pending = new HashSet<>(pendingTransactions);
+        universe = null;
+        bits = null;
+    }
+
+    @Override
+    public Set<Transaction> sendToFollowers() {
+        Set<Transaction> txs = new HashSet<>(pending);
+        if (bits != null) {
+            universe.forEach(bits, txs::add);
+        }
+        return txs;
+    }
+
+    @Override
+    public void receiveFromFollowees(Set<Candidate> candidates) {
+        for (Candidate candidate : candidates) {
+            pending.add(candidate.tx);
+        }
+    }
+
+    @Override
+    public void sendBitsToFollowers(TransactionUniverse universe, long[] proposal) {
+        long[] own = bits(universe);
+        System.arraycopy(own, 0, proposal, 0, own.length);
+    }
+
+    @Override
+    public void receiveBitsFromFollowees(TransactionUniverse universe, int[] followees, long[][] proposals) {
+        long[] own = bits(universe);
+        for (int sender : followees) {
+            long[] proposal = proposals[sender];
+            for (int w = 0; w < own.length; w++) {
+                own[w] |= proposal[w];
+            }
+        }
+    }
+
+    /** The pending transactions as a bitset over {@code universe}, built on first use */
+    private long[] bits(TransactionUniverse universe) {
+        if (this.universe != universe) {
+            if (bits != null) {
+                this.universe.forEach(bits, pending::add);
+            }
+            this.universe = universe;
+            bits = new long[universe.words()];
+            universe.addAll(bits, pending);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,26 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashing helpers shared by the simulation. Each thread keeps its own SHA-256 instance so the
+ * provider lookup in {@code MessageDigest.getInstance} is not paid per transaction.
+ */
+public class Crypto {
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(Crypto::newDigest);
+
+    /** Returns the SHA-256 digest of {@code data}, computed with this thread's digest instance */
+    public static byte[] sha256(byte[] data) {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        return md.digest(data);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not supported", e);
+        }
+    }
+}
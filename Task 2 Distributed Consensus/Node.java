@@ -4,6 +4,19 @@ public interface Node {
     /** {@code followees[i]} is true if this node follows node {@code i} */
     void setFollowees(boolean[] followees);
 
+    /**
+     * {@code followees} holds the ids of the nodes this node follows, in increasing order, out of
+     * {@code numNodes} nodes. The default passes them on as the array of
+     * {@link #setFollowees(boolean[])}; nodes meant for large networks should keep the list
+     * instead, since that array costs {@code numNodes} bytes per node.
+     */
+    default void setFollowees(int[] followees, int numNodes) {
+        boolean[] followed = new boolean[numNodes];
+        for (int id : followees)
+            followed[id] = true;
+        setFollowees(followed);
+    }
+
     /** Initialize the set of transactions the node initially has */
     void setPendingTransaction(Set<Transaction> pendingTransactions);
 
@@ -13,6 +26,33 @@ public interface Node {
      */
     Set<Transaction> sendToFollowers();
 
-    /** Receive candidate transactions from followees */
+    /**
+     * Receive candidate transactions from followees. The set is read-only and may share its
+     * candidates with the sets given to other nodes in the same round.
+     */
     void receiveFromFollowees(Set<Candidate> candidates);
+
+    /**
+     * Compact counterpart of {@link #sendToFollowers()}, used when the simulation runs on
+     * bitsets: set the bits of the proposed transactions in {@code proposal}, which is cleared
+     * and has {@link TransactionUniverse#words()} words. The default sets the bits of
+     * {@link #sendToFollowers()}; transactions outside {@code universe} cannot be proposed.
+     */
+    default void sendBitsToFollowers(TransactionUniverse universe, long[] proposal) {
+        Set<Transaction> txs = sendToFollowers();
+        if (txs != null) {
+            universe.addAll(proposal, txs);
+        }
+    }
+
+    /**
+     * Compact counterpart of {@link #receiveFromFollowees(Set)}: {@code proposals[j]} is the
+     * proposal of node {@code j} for every {@code j} in {@code followees}. The arrays are shared
+     * by every node, read-only, and reused in the next round. The default passes them on to
+     * {@link #receiveFromFollowees(Set)} as a view whose candidates are created once per sender
+     * and round, when a view first reaches them, and shared with the views of the other followers.
+     */
+    default void receiveBitsFromFollowees(TransactionUniverse universe, int[] followees, long[][] proposals) {
+        receiveFromFollowees(universe.candidates(followees, proposals));
+    }
 }
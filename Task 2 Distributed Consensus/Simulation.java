@@ -1,4 +1,13 @@
+    import java.io.IOException;
+    import java.nio.charset.StandardCharsets;
+    import java.nio.file.Files;
+    import java.nio.file.Path;
+    import java.nio.file.Paths;
     import java.util.*;
+    import java.util.concurrent.ForkJoinPool;
+    import java.util.function.IntConsumer;
+    import java.util.function.Supplier;
+    import java.util.stream.IntStream;
 
     public class Simulation {
         private int numNodes;
@@ -8,48 +17,89 @@
         private int numRounds;
 
         private Node[] nodes;
-        private boolean[][] followees;
-        private Random rand;
+        private int[][] followees;  // followees[i] = ids of the nodes node i follows, increasing
+        private int txCount;
+        private SplittableRandom rand;
+        private int parallelism = 1;
+        private boolean compact;
+        private boolean quiet;
+        private SimulationMetrics metrics;
+        private Supplier<Node> compliantNodes;  // null for CompliantNode
+
+        public static final int DEFAULT_TX_COUNT = 5;
 
         public Simulation(int numNodes, double connectivityProb, double maliciousProb, double txCommunicationProb, int numRounds) {
+            this(numNodes, connectivityProb, maliciousProb, txCommunicationProb, numRounds, DEFAULT_TX_COUNT, new SplittableRandom());
+        }
+
+        /** A simulation of {@code txCount} transactions whose network is drawn from {@code seed} */
+        public Simulation(int numNodes, double connectivityProb, double maliciousProb, double txCommunicationProb, int numRounds,
+                          int txCount, long seed) {
+            this(numNodes, connectivityProb, maliciousProb, txCommunicationProb, numRounds, txCount, new SplittableRandom(seed));
+        }
+
+        /**
+         * A simulation of {@code txCount} transactions whose network is drawn from {@code random}.
+         * The trust graph, the choice of malicious nodes and the initial transactions each come
+         * from their own split of it, so changing one parameter does not reshuffle the others, and
+         * the same random source always gives the same network. Randomness inside the nodes
+         * themselves is up to the nodes.
+         */
+        public Simulation(int numNodes, double connectivityProb, double maliciousProb, double txCommunicationProb, int numRounds,
+                          int txCount, SplittableRandom random) {
+            this(numNodes, connectivityProb, maliciousProb, txCommunicationProb, numRounds, txCount, random, null);
+        }
+
+        /**
+         * A simulation as above whose compliant nodes come from {@code compliantNodes}, one call per
+         * node, rather than being {@link CompliantNode}s; null stands for {@link CompliantNode}.
+         */
+        public Simulation(int numNodes, double connectivityProb, double maliciousProb, double txCommunicationProb, int numRounds,
+                          int txCount, SplittableRandom random, Supplier<Node> compliantNodes) {
+            if (txCount < 0) {
+                throw new IllegalArgumentException("txCount must not be negative");
+            }
             this.numNodes = numNodes;
             this.connectivityProb = connectivityProb;
             this.maliciousProb = maliciousProb;
             this.txCommunicationProb = txCommunicationProb;
             this.numRounds = numRounds;
-            this.rand = new Random();
+            this.txCount = txCount;
+            this.rand = random;
+            this.compliantNodes = compliantNodes;
 
             initNetwork();
         }
 
         private void initNetwork() {
         nodes = new Node[numNodes];
-        followees = new boolean[numNodes][numNodes];
+        followees = new int[numNodes][];
+        SplittableRandom graphRandom = rand.split();
+        SplittableRandom roleRandom = rand.split();
+        SplittableRandom txRandom = rand.split();
 
         generateGlobalTransactions(); // ✅ Now it's safe to call
 
         // Trust graph creation
         for (int i = 0; i < numNodes; i++) {
-            for (int j = 0; j < numNodes; j++) {
-                if (i != j) {
-                    followees[i][j] = rand.nextDouble() < connectivityProb;
-                }
-            }
+            followees[i] = drawFollowees(i, graphRandom);
         }
 
         for (int i = 0; i < numNodes; i++) {
-            if (rand.nextDouble() < maliciousProb) {
+            if (roleRandom.nextDouble() < maliciousProb) {
                 nodes[i] = new MaliciousNode();
+            } else if (compliantNodes != null) {
+                nodes[i] = compliantNodes.get();
             } else {
                 nodes[i] = new CompliantNode(connectivityProb, maliciousProb, txCommunicationProb, numRounds);
             }
 
-            nodes[i].setFollowees(followees[i]);
+            nodes[i].setFollowees(followees[i], numNodes);
 
             // Assign subset of shared transactions
             Set<Transaction> initTxs = new HashSet<>();
             for (Transaction tx : allTransactions) {
-                if (rand.nextDouble() < txCommunicationProb) {
+                if (txRandom.nextDouble() < txCommunicationProb) {
                     initTxs.add(tx);
                 }
             }
@@ -58,44 +108,200 @@
         }
     }
 
+        /**
+         * Draws the followees of node {@code i}: every other node independently with probability
+         * {@code connectivityProb}. Jumps straight to the next followee by drawing the geometric gap
+         * to it, so the graph costs O(edges) to build instead of a draw per pair of nodes.
+         */
+        private int[] drawFollowees(int i, SplittableRandom random) {
+            int others = numNodes - 1;
+            if (connectivityProb <= 0 || others <= 0) {
+                return new int[0];
+            }
+            int[] ids = new int[(int) Math.min(others, connectivityProb * others * 1.1 + 16)];
+            int count = 0;
+            double logMiss = Math.log1p(-connectivityProb);
+            for (long k = -1; ; ) {
+                // Number of misses before the next hit; every other node when connectivityProb is 1
+                k += connectivityProb >= 1 ? 1 : 1 + (long) (Math.log(1 - random.nextDouble()) / logMiss);
+                if (k >= others) {
+                    break;
+                }
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, Math.min(others, 2 * ids.length));
+                }
+                ids[count++] = k < i ? (int) k : (int) k + 1;  // skip i itself
+            }
+            return Arrays.copyOf(ids, count);
+        }
+
         private List<Transaction> allTransactions;
 
         private void generateGlobalTransactions() {
             allTransactions = new ArrayList<>();
-            for (int i = 0; i < 5; i++) {
+            for (int i = 0; i < txCount; i++) {
                 allTransactions.add(new Transaction(i));
             }
         }
 
 
 
-        @SuppressWarnings("unchecked")
-        public void run() {
-            for (int round = 0; round < numRounds; round++) {
-                Set<Transaction>[] proposals = (Set<Transaction>[]) new Set[numNodes];
-                for (int i = 0; i < numNodes; i++) {
-                    proposals[i] = nodes[i].sendToFollowers();
-                    if (proposals[i] == null) {
-                        proposals[i] = new HashSet<>(); // Avoid null pointer
+        /**
+         * Runs each round on {@code parallelism} threads: every node's proposal is taken
+         * concurrently, then, once all of them are in, every delivery. Within a phase each node
+         * only touches its own state, so the outcome is the same as on one thread. The default, 1,
+         * runs on the calling thread.
+         */
+        public void setParallelism(int parallelism) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be at least 1");
+            }
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * Runs the rounds on bitsets rather than sets: proposals go through
+         * {@link Node#sendBitsToFollowers} and {@link Node#receiveBitsFromFollowees}, as one
+         * {@code long[]} per node over the simulation's transactions. Those arrays are allocated once
+         * and reused every round, so a round of nodes that implement the bitset methods, such as
+         * {@link CompactNode}, allocates nothing beyond what the nodes do. Nodes that only implement
+         * the set methods still work, through the default conversions, which create the candidates
+         * of each sender once a round and share them between its followers, as the set mode does;
+         * proposed transactions that are not among the simulation's are dropped.
+         */
+        public void setCompact(boolean compact) {
+            this.compact = compact;
+        }
+
+        /** Makes {@link #run()} print how many transactions each node ended up with rather than each transaction */
+        public void setQuiet(boolean quiet) {
+            this.quiet = quiet;
+        }
+
+        /** Has every later run record its rounds in {@code metrics}; null, the default, records nothing */
+        public void setMetrics(SimulationMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Each round takes one snapshot of every node's proposal as shared {@link Candidate}s, then
+         * hands each node a read-only view over the snapshots of its followees. A round costs the
+         * proposals plus one view per node; no candidate is copied per follower.
+         */
+        public void simulate() {
+            ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+            if (metrics != null) {
+                metrics.start(numNodes);
+            }
+            try {
+                if (compact) {
+                    simulateCompact(pool);
+                } else {
+                    for (int round = 0; round < numRounds; round++) {
+                        // A new array every round, so a view a node holds on to keeps its round's proposals
+                        Candidate[][] proposals = new Candidate[numNodes][];
+                        forEachNode(pool, i -> proposals[i] = propose(i));
+                        if (metrics != null) {
+                            metrics.proposalsDone();
+                        }
+                        forEachNode(pool, i -> deliver(i, proposals));
+                        if (metrics != null) {
+                            metrics.roundDone();
+                        }
                     }
                 }
+            } finally {
+                if (pool != null) {
+                    pool.shutdown();
+                }
+            }
 
+            if (metrics != null) {
+                Object[] finalKeys = new Object[numNodes];
                 for (int i = 0; i < numNodes; i++) {
-                    Set<Candidate> received = new HashSet<>();
-                    for (int j = 0; j < numNodes; j++) {
-                        if (followees[i][j]) {
-                            for (Transaction tx : proposals[j]) {
-                                received.add(new Candidate(j, tx));
-                            }
+                    if (!(nodes[i] instanceof MaliciousNode)) {
+                        Set<Transaction> consensusTxs = nodes[i].sendToFollowers();
+                        finalKeys[i] = consensusTxs == null ? Collections.emptySet() : consensusTxs;
+                    }
+                }
+                metrics.finished(finalKeys);
+            }
+        }
+
+        /** Snapshot of the proposal of node {@code i}, recorded in the metrics if there are any */
+        private Candidate[] propose(int i) {
+            Set<Transaction> proposal = nodes[i].sendToFollowers();
+            Candidate[] candidates = snapshot(i, proposal);
+            if (metrics != null) {
+                long bytes = 0;
+                for (Candidate candidate : candidates) {
+                    bytes += candidate.tx.getHash().length;
+                }
+                Object key = nodes[i] instanceof MaliciousNode ? null : proposal == null ? Collections.emptySet() : proposal;
+                metrics.proposed(i, candidates.length, bytes, key);
+            }
+            return candidates;
+        }
+
+        /** Delivers the proposals of its followees to node {@code i}, timing it if there are metrics */
+        private void deliver(int i, Candidate[][] proposals) {
+            Delivery delivery = new Delivery(followees[i], proposals);
+            if (metrics == null) {
+                nodes[i].receiveFromFollowees(delivery);
+                return;
+            }
+            long start = System.nanoTime();
+            nodes[i].receiveFromFollowees(delivery);
+            metrics.received(i, followees[i], System.nanoTime() - start);
+        }
+
+        /** The rounds of {@link #simulate()} in compact mode */
+        private void simulateCompact(ForkJoinPool pool) {
+            TransactionUniverse universe = new TransactionUniverse(allTransactions);
+            long[][] proposals = new long[numNodes][universe.words()];
+            for (int round = 0; round < numRounds; round++) {
+                universe.startRound(proposals);
+                forEachNode(pool, i -> {
+                    Arrays.fill(proposals[i], 0);
+                    nodes[i].sendBitsToFollowers(universe, proposals[i]);
+                    if (metrics != null) {
+                        int size = 0;
+                        for (long word : proposals[i]) {
+                            size += Long.bitCount(word);
                         }
+                        Object key = nodes[i] instanceof MaliciousNode ? null : BitSet.valueOf(proposals[i]);
+                        metrics.proposed(i, size, 8L * proposals[i].length, key);
                     }
-                    nodes[i].receiveFromFollowees(received);
+                });
+                if (metrics != null) {
+                    metrics.proposalsDone();
+                }
+                forEachNode(pool, i -> {
+                    if (metrics == null) {
+                        nodes[i].receiveBitsFromFollowees(universe, followees[i], proposals);
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    nodes[i].receiveBitsFromFollowees(universe, followees[i], proposals);
+                    metrics.received(i, followees[i], System.nanoTime() - start);
+                });
+                if (metrics != null) {
+                    metrics.roundDone();
                 }
             }
+        }
+
+        /** Runs every round, then prints the set each node ended up with */
+        public void run() {
+            simulate();
 
             // After all rounds, print consensus for each node
             for (int i = 0; i < numNodes; i++) {
                 Set<Transaction> consensusTxs = nodes[i].sendToFollowers();
+                if (quiet) {
+                    System.out.println("Node " + i + " consensus: " + (consensusTxs == null ? 0 : consensusTxs.size()) + " transactions");
+                    continue;
+                }
                 System.out.println("Node " + i + " consensus:");
                 if (consensusTxs != null) {
                     for (Transaction tx : consensusTxs) {
@@ -108,10 +314,124 @@
             }
         }
 
-        public static void main(String[] args) {
+        /** The ids of the nodes node {@code i} follows, in increasing order */
+        public int[] getFollowees(int i) {
+            return followees[i].clone();
+        }
+
+        /**
+         * Share of compliant nodes that end up with the set most compliant nodes end up with: 1 when
+         * all of them agree, 0 when there are none. Meant to be read after {@link #simulate()}.
+         */
+        public double getConsensusRate() {
+            Map<Set<Transaction>, Integer> agreeing = new HashMap<>();
+            int compliant = 0;
+            int largest = 0;
+            for (Node node : nodes) {
+                if (node instanceof MaliciousNode) {
+                    continue;
+                }
+                Set<Transaction> consensusTxs = node.sendToFollowers();
+                int n = agreeing.merge(consensusTxs == null ? Collections.emptySet() : consensusTxs, 1, Integer::sum);
+                largest = Math.max(largest, n);
+                compliant++;
+            }
+            return compliant == 0 ? 0 : (double) largest / compliant;
+        }
+
+        /** Calls {@code action} on every node id, on {@code pool} if there is one, and returns when all are done */
+        private void forEachNode(ForkJoinPool pool, IntConsumer action) {
+            if (pool == null) {
+                for (int i = 0; i < numNodes; i++) {
+                    action.accept(i);
+                }
+                return;
+            }
+            // The stream splits the ids into one task per chunk; join is the barrier between phases
+            pool.submit(() -> IntStream.range(0, numNodes).parallel().forEach(action)).join();
+        }
+
+        /** The proposal of node {@code sender} as candidates, empty if it proposed nothing */
+        private static Candidate[] snapshot(int sender, Set<Transaction> proposal) {
+            if (proposal == null) {
+                return new Candidate[0]; // Avoid null pointer
+            }
+            Candidate[] candidates = new Candidate[proposal.size()];
+            int n = 0;
+            for (Transaction tx : proposal) {
+                candidates[n++] = new Candidate(sender, tx);
+            }
+            return n == candidates.length ? candidates : Arrays.copyOf(candidates, n);
+        }
+
+        /** Read-only set of the candidates proposed by the followees of one node in one round */
+        static class Delivery extends AbstractSet<Candidate> {
+            private final int[] senders;
+            private final Candidate[][] proposals;
+            private final int size;
+
+            Delivery(int[] senders, Candidate[][] proposals) {
+                this.senders = senders;
+                this.proposals = proposals;
+                int n = 0;
+                for (int sender : senders) {
+                    n += proposals[sender].length;
+                }
+                this.size = n;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Candidate> iterator() {
+                return new Iterator<Candidate>() {
+                    private int s = 0;  // position in senders
+                    private int c = 0;  // position in the proposal of senders[s]
+
+                    @Override
+                    public boolean hasNext() {
+                        while (s < senders.length && c == proposals[senders[s]].length) {
+                            s++;
+                            c = 0;
+                        }
+                        return s < senders.length;
+                    }
+
+                    @Override
+                    public Candidate next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return proposals[senders[s]][c++];
+                    }
+                };
+            }
+        }
+
+        /** Run with: java Simulation [--quiet] [--metrics file.json] */
+        public static void main(String[] args) throws IOException {
             // Example parameters: 10 nodes, 20% connectivity, 30% malicious, 10% tx communication, 10 rounds
             Simulation sim = new Simulation(10, 0.2, 0.3, 0.1, 10);
+            SimulationMetrics metrics = null;
+            Path metricsFile = null;
+            for (int a = 0; a < args.length; a++) {
+                if (args[a].equals("--quiet")) {
+                    sim.setQuiet(true);
+                } else if (args[a].equals("--metrics") && a + 1 < args.length) {
+                    metricsFile = Paths.get(args[++a]);
+                    metrics = new SimulationMetrics();
+                    sim.setMetrics(metrics);
+                } else {
+                    throw new IllegalArgumentException("usage: java Simulation [--quiet] [--metrics file.json]");
+                }
+            }
             sim.run();
+            if (metrics != null) {
+                Files.write(metricsFile, metrics.toJson().getBytes(StandardCharsets.UTF_8));
+            }
         }
-        
+
     }
@@ -0,0 +1,183 @@
+import java.util.*;
+
+/**
+ * Per-round measurements of a {@link Simulation}, filled in while it runs once handed to
+ * {@link Simulation#setMetrics}. For every round: the messages delivered (one per non-empty
+ * proposal of a followee), the candidates and bytes they carry, the time spent in
+ * {@code receiveFromFollowees} over all nodes and in the slowest one, and how many compliant
+ * nodes agree once the round is over. Bytes count 32 bytes of transaction hash per candidate, or
+ * the bitset of the proposal in compact mode.
+ *
+ * Agreement is read from the proposals of the next round, and from the final sets after the last
+ * round, so measuring it does not call into the nodes any more than the simulation does.
+ */
+public class SimulationMetrics {
+
+    /** Measurements of one round */
+    public static class Round {
+        public long messages;
+        public long candidates;
+        public long bytes;
+        public long receiveNanos;
+        public long maxReceiveNanos;
+        /** Compliant nodes holding the set most compliant nodes hold at the end of the round */
+        public int agreeing;
+    }
+
+    private final List<Round> rounds = new ArrayList<>();
+    private int compliantNodes;
+    private int initialAgreeing;
+    private long[] receiveNanosByNode = new long[0];
+
+    // Slots of the round in progress, each written only by its own node
+    private int[] proposalSize = new int[0];
+    private long[] proposalBytes = new long[0];
+    private Object[] proposalKey = new Object[0];  // what compliant nodes proposed, null for the others
+    private long[] receivedMessages = new long[0];
+    private long[] receivedCandidates = new long[0];
+    private long[] receivedBytes = new long[0];
+    private long[] receiveNanos = new long[0];
+
+    /** Rounds measured so far, in order */
+    public List<Round> getRounds() {
+        return Collections.unmodifiableList(rounds);
+    }
+
+    /** Number of compliant nodes in the simulation */
+    public int getCompliantNodes() {
+        return compliantNodes;
+    }
+
+    /** Compliant nodes agreeing on their initial transactions */
+    public int getInitialAgreeing() {
+        return initialAgreeing;
+    }
+
+    /** Time each node spent in {@code receiveFromFollowees} over all rounds, by node id */
+    public long[] getReceiveNanosByNode() {
+        return receiveNanosByNode.clone();
+    }
+
+    /** The measurements as a JSON object */
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"compliantNodes\": ").append(compliantNodes);
+        json.append(",\n  \"initialAgreeing\": ").append(initialAgreeing);
+        json.append(",\n  \"rounds\": [");
+        for (int r = 0; r < rounds.size(); r++) {
+            Round round = rounds.get(r);
+            json.append(r == 0 ? "\n" : ",\n");
+            json.append("    {\"round\": ").append(r)
+                    .append(", \"messages\": ").append(round.messages)
+                    .append(", \"candidates\": ").append(round.candidates)
+                    .append(", \"bytes\": ").append(round.bytes)
+                    .append(", \"receiveNanos\": ").append(round.receiveNanos)
+                    .append(", \"maxReceiveNanos\": ").append(round.maxReceiveNanos)
+                    .append(", \"agreeing\": ").append(round.agreeing)
+                    .append('}');
+        }
+        json.append(rounds.isEmpty() ? "]" : "\n  ]");
+        json.append(",\n  \"receiveNanosByNode\": [");
+        for (int i = 0; i < receiveNanosByNode.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(receiveNanosByNode[i]);
+        }
+        json.append("]\n}\n");
+        return json.toString();
+    }
+
+    /** Clears the measurements for a run of {@code numNodes} nodes */
+    void start(int numNodes) {
+        rounds.clear();
+        compliantNodes = 0;
+        initialAgreeing = 0;
+        receiveNanosByNode = new long[numNodes];
+        proposalSize = new int[numNodes];
+        proposalBytes = new long[numNodes];
+        proposalKey = new Object[numNodes];
+        receivedMessages = new long[numNodes];
+        receivedCandidates = new long[numNodes];
+        receivedBytes = new long[numNodes];
+        receiveNanos = new long[numNodes];
+    }
+
+    /**
+     * Records the proposal of {@code node} this round: {@code size} candidates in {@code bytes}
+     * bytes. {@code key} is a value equal to the proposal of any other compliant node proposing
+     * the same transactions, or null if the node is not compliant.
+     */
+    void proposed(int node, int size, long bytes, Object key) {
+        proposalSize[node] = size;
+        proposalBytes[node] = bytes;
+        proposalKey[node] = key;
+    }
+
+    /**
+     * Called once every proposal of the round is recorded, before any is delivered: they are the
+     * state of the nodes at the end of the previous round.
+     */
+    void proposalsDone() {
+        int agreeing = agreeing(proposalKey);
+        if (rounds.isEmpty()) {
+            initialAgreeing = agreeing;
+        } else {
+            rounds.get(rounds.size() - 1).agreeing = agreeing;
+        }
+    }
+
+    /** Records that {@code node} received the proposals of {@code followees} in {@code nanos} */
+    void received(int node, int[] followees, long nanos) {
+        long messages = 0;
+        long candidates = 0;
+        long bytes = 0;
+        for (int sender : followees) {
+            if (proposalSize[sender] > 0) {
+                messages++;
+                candidates += proposalSize[sender];
+                bytes += proposalBytes[sender];
+            }
+        }
+        receivedMessages[node] = messages;
+        receivedCandidates[node] = candidates;
+        receivedBytes[node] = bytes;
+        receiveNanos[node] = nanos;
+        receiveNanosByNode[node] += nanos;
+    }
+
+    /** Sums the slots of the round just delivered into a new {@link Round} */
+    void roundDone() {
+        Round round = new Round();
+        for (int i = 0; i < receiveNanos.length; i++) {
+            round.messages += receivedMessages[i];
+            round.candidates += receivedCandidates[i];
+            round.bytes += receivedBytes[i];
+            round.receiveNanos += receiveNanos[i];
+            round.maxReceiveNanos = Math.max(round.maxReceiveNanos, receiveNanos[i]);
+        }
+        rounds.add(round);
+    }
+
+    /** Records the final sets of the nodes, keyed as in {@link #proposed}, after the last round */
+    void finished(Object[] finalKeys) {
+        compliantNodes = 0;
+        for (Object key : finalKeys) {
+            compliantNodes += key == null ? 0 : 1;
+        }
+        if (rounds.isEmpty()) {
+            initialAgreeing = agreeing(finalKeys);
+        } else {
+            rounds.get(rounds.size() - 1).agreeing = agreeing(finalKeys);
+        }
+    }
+
+    /** Size of the largest group of equal non-null keys */
+    private static int agreeing(Object[] keys) {
+        Map<Object, Integer> counts = new HashMap<>();
+        int largest = 0;
+        for (Object key : keys) {
+            if (key != null) {
+                largest = Math.max(largest, counts.merge(key, 1, Integer::sum));
+            }
+        }
+        return largest;
+    }
+}
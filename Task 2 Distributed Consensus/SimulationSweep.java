@@ -0,0 +1,98 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Runs a {@link Simulation} for every combination of a grid of parameters and prints one CSV
+ * line per combination with the consensus rate among compliant nodes and the wall time.
+ *
+ * Every cell draws its network from its own split of one {@link SplittableRandom} seeded with
+ * {@code seed}. The splits are taken in grid order before anything runs, so a cell gets the same
+ * network whatever the grid around it and whichever thread runs it. Cells run in parallel, each
+ * simulation on one thread, and the lines come out in grid order.
+ *
+ * Run with: java SimulationSweep [seed] [name=value,value,...]... [threads=n]
+ * where name is one of numNodes, connectivityProb, maliciousProb, txCommunicationProb,
+ * numRounds or txCount, e.g. java SimulationSweep 42 numNodes=100,1000 numRounds=10
+ */
+public class SimulationSweep {
+
+    private static final String[] PARAMETERS = {
+            "numNodes", "connectivityProb", "maliciousProb", "txCommunicationProb", "numRounds", "txCount"
+    };
+
+    /** The grid of the assignment's own test runs */
+    private static final String[] DEFAULT_GRID = {
+            "100", "0.1,0.2,0.3,0.45", "0.15,0.3,0.45", "0.01,0.05,0.1", "10,20", "500"
+    };
+
+    public static void main(String[] args) {
+        long seed = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String[] grid = DEFAULT_GRID.clone();
+        for (int a = 0; a < args.length; a++) {
+            int eq = args[a].indexOf('=');
+            if (eq < 0 && a == 0) {
+                seed = Long.parseLong(args[a]);
+                continue;
+            }
+            String name = eq < 0 ? args[a] : args[a].substring(0, eq);
+            String values = args[a].substring(eq + 1);
+            if (name.equals("threads")) {
+                threads = Integer.parseInt(values);
+                continue;
+            }
+            int p = Arrays.asList(PARAMETERS).indexOf(name);
+            if (p < 0 || eq < 0) {
+                throw new IllegalArgumentException("expected name=value,... with name one of "
+                        + String.join(", ", PARAMETERS) + " or threads, got " + args[a]);
+            }
+            grid[p] = values;
+        }
+
+        double[][] axes = new double[PARAMETERS.length][];
+        int cellCount = 1;
+        for (int p = 0; p < PARAMETERS.length; p++) {
+            axes[p] = Arrays.stream(grid[p].split(",")).mapToDouble(Double::parseDouble).toArray();
+            cellCount = Math.multiplyExact(cellCount, axes[p].length);
+        }
+
+        // Cell c takes value (c / stride) % length on each axis, the last axis varying fastest
+        double[][] cells = new double[cellCount][PARAMETERS.length];
+        SplittableRandom[] randoms = new SplittableRandom[cellCount];
+        SplittableRandom root = new SplittableRandom(seed);
+        for (int c = 0; c < cellCount; c++) {
+            int stride = 1;
+            for (int p = PARAMETERS.length - 1; p >= 0; p--) {
+                cells[c][p] = axes[p][(c / stride) % axes[p].length];
+                stride *= axes[p].length;
+            }
+            randoms[c] = root.split();
+        }
+
+        String[] lines = new String[cellCount];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, cells.length).parallel()
+                    .forEach(c -> lines[c] = runCell(cells[c], randoms[c]))).join();
+        } finally {
+            pool.shutdown();
+        }
+
+        System.out.println("seed," + String.join(",", PARAMETERS) + ",consensusRate,wallMillis");
+        for (String line : lines) {
+            System.out.println(seed + "," + line);
+        }
+    }
+
+    /** Runs the simulation of one cell and returns its CSV columns after the seed */
+    private static String runCell(double[] cell, SplittableRandom random) {
+        long start = System.nanoTime();
+        Simulation sim = new Simulation((int) cell[0], cell[1], cell[2], cell[3], (int) cell[4], (int) cell[5], random);
+        sim.simulate();
+        double rate = sim.getConsensusRate();
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+        return String.format(Locale.ROOT, "%d,%s,%s,%s,%d,%d,%.4f,%d",
+                (int) cell[0], cell[1], cell[2], cell[3], (int) cell[4], (int) cell[5], rate, wallMillis);
+    }
+}
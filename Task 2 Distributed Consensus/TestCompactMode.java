@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
+
+public class TestCompactMode {
+
+    public static void main(String[] args) {
+        // 1. Compact mode ends with the sets of set mode, through the default conversions or natively
+        for (long seed = 1; seed <= 6; seed++) {
+            List<Set<Transaction>> expected = finalSets(seed, false, 1, QuorumNode::new);
+            check(expected.equals(finalSets(seed, true, 1, QuorumNode::new)), "set-only nodes end the same in compact mode");
+            check(expected.equals(finalSets(seed, true, 4, QuorumNode::new)), "set-only nodes end the same on four threads");
+            expected = finalSets(seed, false, 1, CompactNode::new);
+            check(expected.equals(finalSets(seed, true, 1, CompactNode::new)), "bitset nodes end the same in compact mode");
+            check(expected.equals(finalSets(seed, true, 4, CompactNode::new)), "bitset nodes end the same on four threads");
+        }
+        System.out.println("Compact mode ends with the sets of set mode");
+
+        // 2. Every follower of a sender is handed the same candidates in a round
+        List<RecordingNode> recorders = new ArrayList<>();
+        Simulation sim = new Simulation(40, 0.2, 0, 0.2, 5, 100, new SplittableRandom(7), () -> {
+            RecordingNode node = new RecordingNode();
+            recorders.add(node);
+            return node;
+        });
+        sim.setCompact(true);
+        sim.setParallelism(4);
+        sim.simulate();
+        int shared = 0;
+        for (int round = 0; round < 5; round++) {
+            Map<String, Candidate> first = new HashMap<>();
+            for (RecordingNode node : recorders) {
+                for (Candidate candidate : node.received.get(round)) {
+                    Candidate seen = first.putIfAbsent(candidate.sender + ":" + candidate.tx.getId(), candidate);
+                    check(seen == null || seen == candidate, "a candidate is created once per sender and round");
+                    shared += seen == null ? 0 : 1;
+                }
+            }
+        }
+        check(shared > 0, "candidates are delivered to more than one follower");
+        for (RecordingNode node : recorders) {
+            check(node.sizeMismatches == 0, "a view iterates as many candidates as its size");
+        }
+        System.out.println("Followers share " + shared + " candidates");
+    }
+
+    /** The final set of every compliant node of a run of the network drawn from {@code seed} */
+    private static List<Set<Transaction>> finalSets(long seed, boolean compact, int parallelism, Supplier<Node> kind) {
+        List<Node> nodes = new ArrayList<>();
+        Simulation sim = new Simulation(60, 0.1, 0.2, 0.1, 8, 130, new SplittableRandom(seed), () -> {
+            Node node = kind.get();
+            nodes.add(node);
+            return node;
+        });
+        sim.setCompact(compact);
+        sim.setParallelism(parallelism);
+        sim.simulate();
+        List<Set<Transaction>> sets = new ArrayList<>();
+        for (Node node : nodes) {
+            sets.add(node.sendToFollowers());
+        }
+        return sets;
+    }
+
+    /** Set-only node taking a transaction once two distinct followees have proposed it */
+    private static class QuorumNode implements Node {
+        private final Set<Transaction> pending = new HashSet<>();
+
+        @Override
+        public void setFollowees(boolean[] followees) {
+        }
+
+        @Override
+        public void setPendingTransaction(Set<Transaction> pendingTransactions) {
+            pending.addAll(pendingTransactions);
+        }
+
+        @Override
+        public Set<Transaction> sendToFollowers() {
+            return new HashSet<>(pending);
+        }
+
+        @Override
+        public void receiveFromFollowees(Set<Candidate> candidates) {
+            Map<Transaction, Set<Integer>> senders = new HashMap<>();
+            for (Candidate candidate : candidates) {
+                senders.computeIfAbsent(candidate.tx, tx -> new HashSet<>()).add(candidate.sender);
+            }
+            senders.forEach((tx, from) -> {
+                if (from.size() >= 2) {
+                    pending.add(tx);
+                }
+            });
+        }
+    }
+
+    /** Set-only node keeping the candidates it is handed each round */
+    private static class RecordingNode implements Node {
+        final List<List<Candidate>> received = new ArrayList<>();
+        int sizeMismatches;
+        private Set<Transaction> pending = new HashSet<>();
+
+        @Override
+        public void setFollowees(boolean[] followees) {
+        }
+
+        @Override
+        public void setPendingTransaction(Set<Transaction> pendingTransactions) {
+            pending = new HashSet<>(pendingTransactions);
+        }
+
+        @Override
+        public Set<Transaction> sendToFollowers() {
+            return new HashSet<>(pending);
+        }
+
+        @Override
+        public void receiveFromFollowees(Set<Candidate> candidates) {
+            List<Candidate> round = new ArrayList<>();
+            for (Candidate candidate : candidates) {
+                round.add(candidate);
+                pending.add(candidate.tx);
+            }
+            sizeMismatches += round.size() == candidates.size() ? 0 : 1;
+            received.add(round);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
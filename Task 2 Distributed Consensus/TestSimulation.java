@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+
+public class TestSimulation {
+
+    public static void main(String[] args) {
+        // 1. No followees at probability 0, every other node at 1
+        Simulation sim = network(50, 0, 1);
+        for (int i = 0; i < 50; i++)
+            check(sim.getFollowees(i).length == 0, "probability 0 follows nobody");
+        sim = network(50, 1, 1);
+        for (int i = 0; i < 50; i++) {
+            int[] followees = sim.getFollowees(i);
+            check(followees.length == 49, "probability 1 follows every other node");
+            for (int k = 0; k < followees.length; k++)
+                check(followees[k] == (k < i ? k : k + 1), "probability 1 follows every node but itself, in order");
+        }
+        check(network(1, 1, 1).getFollowees(0).length == 0, "a lone node follows nobody");
+        System.out.println("Probabilities 0 and 1 give the empty and the full graph");
+
+        // 2. In between, followees are increasing, never the node itself, and as many as expected
+        int numNodes = 2000;
+        double p = 0.05;
+        sim = network(numNodes, p, 2);
+        long edges = 0;
+        long lowHalf = 0;
+        int[] followedBy = new int[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            int[] followees = sim.getFollowees(i);
+            for (int k = 0; k < followees.length; k++) {
+                check(followees[k] >= 0 && followees[k] < numNodes, "followee ids are node ids");
+                check(followees[k] != i, "a node never follows itself");
+                check(k == 0 || followees[k] > followees[k - 1], "followee ids are strictly increasing");
+                followedBy[followees[k]]++;
+                lowHalf += followees[k] < numNodes / 2 ? 1 : 0;
+            }
+            edges += followees.length;
+        }
+        double expected = p * numNodes * (numNodes - 1);
+        double sd = Math.sqrt(expected * (1 - p));
+        check(Math.abs(edges - expected) < 5 * sd, "edge count is within five deviations of its mean");
+        check(Math.abs(lowHalf - edges / 2.0) < 5 * Math.sqrt(edges / 4.0), "followees are spread over all ids");
+        int neighbours = 0;
+        for (int i = 1; i < numNodes; i++) {
+            int[] followees = sim.getFollowees(i);
+            for (int id : followees)
+                neighbours += id == i - 1 ? 1 : 0;
+        }
+        check(neighbours > 0 && followedBy[0] > 0 && followedBy[numNodes - 1] > 0,
+                "the nodes next to a node and at both ends get followed");
+        System.out.println(edges + " edges at probability " + p + ", " + Math.round(expected) + " expected");
+
+        // 3. A delivery iterates as many candidates as its size, in order, skipping empty proposals
+        Transaction tx0 = new Transaction(0);
+        Transaction tx1 = new Transaction(1);
+        Candidate[][] proposals = {
+                { new Candidate(0, tx0), new Candidate(0, tx1) },
+                {},
+                { new Candidate(2, tx1) },
+                {},
+        };
+        checkDelivery(new int[] { 0, 1, 2, 3 }, proposals);
+        checkDelivery(new int[] { 1, 3 }, proposals);
+        checkDelivery(new int[] { 1, 2 }, proposals);
+        checkDelivery(new int[] { 0, 1 }, proposals);
+        checkDelivery(new int[0], proposals);
+        Simulation.Delivery delivery = new Simulation.Delivery(new int[] { 1, 2, 3 }, proposals);
+        Iterator<Candidate> it = delivery.iterator();
+        check(it.hasNext() && it.hasNext() && it.next() == proposals[2][0], "hasNext does not move the iterator");
+        check(!it.hasNext(), "a delivery ends after its last candidate");
+        try {
+            it.next();
+            throw new AssertionError("next past the end throws");
+        } catch (NoSuchElementException expectedEnd) {
+        }
+        System.out.println("Deliveries iterate their size");
+    }
+
+    /** A network of {@code numNodes} compliant nodes, with no transactions, drawn from {@code seed} */
+    private static Simulation network(int numNodes, double connectivityProb, long seed) {
+        return new Simulation(numNodes, connectivityProb, 0, 0, 0, 0, new SplittableRandom(seed), CompactNode::new);
+    }
+
+    /** Checks the delivery of the proposals of {@code senders} holds them in order, and only them */
+    private static void checkDelivery(int[] senders, Candidate[][] proposals) {
+        List<Candidate> expected = new ArrayList<>();
+        for (int sender : senders) {
+            for (Candidate candidate : proposals[sender])
+                expected.add(candidate);
+        }
+        Simulation.Delivery delivery = new Simulation.Delivery(senders, proposals);
+        List<Candidate> iterated = new ArrayList<>();
+        for (Candidate candidate : delivery)
+            iterated.add(candidate);
+        check(delivery.size() == iterated.size(), "delivery size is the number of candidates iterated");
+        check(iterated.equals(expected), "delivery holds the proposals of its senders in order");
+        check(delivery.isEmpty() == expected.isEmpty(), "delivery is empty when its senders proposed nothing");
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
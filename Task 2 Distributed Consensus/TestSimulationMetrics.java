@@ -0,0 +1,122 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
+
+public class TestSimulationMetrics {
+
+    public static void main(String[] args) {
+        // 1. Set, compact and parallel runs of one network count the same messages, candidates and agreement
+        for (long seed = 1; seed <= 4; seed++) {
+            for (Supplier<Node> kind : Arrays.<Supplier<Node>>asList(CompactNode::new, null)) {
+                SimulationMetrics expected = run(seed, kind, false, 1, 6);
+                check(expected.getRounds().size() == 6, "a round is recorded per round");
+                check(expected.getRounds().get(0).messages > 0, "the first round delivers messages");
+                for (SimulationMetrics.Round round : expected.getRounds())
+                    check(round.candidates >= round.messages, "every message carries a candidate");
+                sameCounts(expected, run(seed, kind, true, 1, 6), "compact mode");
+                sameCounts(expected, run(seed, kind, false, 4, 6), "set mode on four threads");
+                sameCounts(expected, run(seed, kind, true, 4, 6), "compact mode on four threads");
+            }
+        }
+        System.out.println("Set, compact and parallel runs report the same counts");
+
+        // 2. The JSON export parses, with rounds or without
+        SimulationMetrics metrics = run(5, CompactNode::new, false, 1, 3);
+        parseJson(metrics.toJson());
+        metrics = run(5, CompactNode::new, true, 1, 0);
+        check(metrics.getRounds().isEmpty(), "a run of no rounds records none");
+        check(metrics.getCompliantNodes() > 0 && metrics.getInitialAgreeing() > 0, "a run of no rounds records the initial agreement");
+        parseJson(metrics.toJson());
+        check(metrics.toJson().contains("\"rounds\": []"), "a run of no rounds exports an empty list of rounds");
+        System.out.println("JSON export parses");
+    }
+
+    /**
+     * Metrics of a run of {@code numRounds} rounds of the network drawn from {@code seed}, whose
+     * compliant nodes come from {@code kind}, or are {@link CompliantNode}s if it is null
+     */
+    private static SimulationMetrics run(long seed, Supplier<Node> kind, boolean compact, int parallelism, int numRounds) {
+        Simulation sim = new Simulation(80, 0.1, 0.3, 0.1, numRounds, 100, new SplittableRandom(seed), kind);
+        SimulationMetrics metrics = new SimulationMetrics();
+        sim.setMetrics(metrics);
+        sim.setCompact(compact);
+        sim.setParallelism(parallelism);
+        sim.simulate();
+        return metrics;
+    }
+
+    private static void sameCounts(SimulationMetrics expected, SimulationMetrics actual, String mode) {
+        check(actual.getCompliantNodes() == expected.getCompliantNodes(), mode + " counts the same compliant nodes");
+        check(actual.getInitialAgreeing() == expected.getInitialAgreeing(), mode + " reports the same initial agreement");
+        check(actual.getRounds().size() == expected.getRounds().size(), mode + " records the same rounds");
+        for (int r = 0; r < expected.getRounds().size(); r++) {
+            SimulationMetrics.Round e = expected.getRounds().get(r);
+            SimulationMetrics.Round a = actual.getRounds().get(r);
+            check(a.messages == e.messages, mode + " counts the same messages in round " + r);
+            check(a.candidates == e.candidates, mode + " counts the same candidates in round " + r);
+            check(a.agreeing == e.agreeing, mode + " reports the same agreement after round " + r);
+        }
+    }
+
+    /** Parses {@code json} as one JSON value, throwing AssertionError if it is not valid JSON */
+    private static void parseJson(String json) {
+        int end = skipSpace(json, value(json, skipSpace(json, 0)));
+        check(end == json.length(), "JSON has nothing after its value");
+    }
+
+    /** @return the position after the JSON value starting at {@code pos} */
+    private static int value(String json, int pos) {
+        check(pos < json.length(), "JSON value is not cut short");
+        char c = json.charAt(pos);
+        if (c == '{' || c == '[') {
+            char close = c == '{' ? '}' : ']';
+            pos = skipSpace(json, pos + 1);
+            if (pos < json.length() && json.charAt(pos) == close)
+                return pos + 1;
+            while (true) {
+                if (c == '{') {
+                    check(pos < json.length() && json.charAt(pos) == '"', "JSON object key is a string");
+                    pos = skipSpace(json, value(json, pos));
+                    check(pos < json.length() && json.charAt(pos) == ':', "JSON object key is followed by a colon");
+                    pos = skipSpace(json, pos + 1);
+                }
+                pos = skipSpace(json, value(json, pos));
+                check(pos < json.length(), "JSON container is closed");
+                if (json.charAt(pos) == close)
+                    return pos + 1;
+                check(json.charAt(pos) == ',', "JSON elements are separated by commas");
+                pos = skipSpace(json, pos + 1);
+            }
+        }
+        if (c == '"') {
+            for (pos++; pos < json.length() && json.charAt(pos) != '"'; pos++) {
+                if (json.charAt(pos) == '\\')
+                    pos++;
+            }
+            check(pos < json.length(), "JSON string is closed");
+            return pos + 1;
+        }
+        for (String literal : new String[] { "true", "false", "null" }) {
+            if (json.startsWith(literal, pos))
+                return pos + literal.length();
+        }
+        int start = pos;
+        if (json.charAt(pos) == '-')
+            pos++;
+        while (pos < json.length() && "0123456789.eE+-".indexOf(json.charAt(pos)) >= 0)
+            pos++;
+        check(pos > start && Character.isDigit(json.charAt(pos - 1)), "JSON value is a number");
+        return pos;
+    }
+
+    private static int skipSpace(String json, int pos) {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+            pos++;
+        return pos;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
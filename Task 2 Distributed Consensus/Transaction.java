@@ -1,5 +1,3 @@
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 public class Transaction {
@@ -20,12 +18,7 @@ public class Transaction {
     }
 
     private void computeHash() {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            this.hash = digest.digest(intToBytes(id));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not supported", e);
-        }
+        this.hash = Crypto.sha256(intToBytes(id));
     }
 
     private byte[] intToBytes(int val) {
@@ -0,0 +1,171 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The transactions of one simulation, numbered 0 to {@code size() - 1}, so that a set of them
+ * can be a {@code long[]} bitset of {@link #words()} words with bit {@code i} standing for
+ * transaction {@code i}. Bit {@code i} is bit {@code i & 63} of word {@code i >>> 6}.
+ */
+public final class TransactionUniverse {
+    private final Transaction[] txs;
+    private final Map<Transaction, Integer> ordinals;  // null when every id is its own ordinal
+
+    // The round in progress, see startRound
+    private long[][] roundProposals;
+    private AtomicReferenceArray<Candidate[]> roundCandidates;
+
+    public TransactionUniverse(List<Transaction> txs) {
+        this.txs = txs.toArray(new Transaction[0]);
+        boolean idsAreOrdinals = true;
+        for (int i = 0; i < this.txs.length; i++) {
+            idsAreOrdinals &= this.txs[i].getId() == i;
+        }
+        if (idsAreOrdinals) {
+            ordinals = null;
+        } else {
+            ordinals = new HashMap<>();
+            for (int i = 0; i < this.txs.length; i++) {
+                ordinals.putIfAbsent(this.txs[i], i);
+            }
+        }
+    }
+
+    /** Number of transactions */
+    public int size() {
+        return txs.length;
+    }
+
+    /** Length of a bitset over these transactions */
+    public int words() {
+        return (txs.length + 63) >>> 6;
+    }
+
+    /** Transaction number {@code ordinal} */
+    public Transaction get(int ordinal) {
+        return txs[ordinal];
+    }
+
+    /** Number of {@code tx}, or -1 if it is not one of these transactions */
+    public int ordinalOf(Transaction tx) {
+        if (ordinals != null) {
+            Integer ordinal = ordinals.get(tx);
+            return ordinal == null ? -1 : ordinal;
+        }
+        int id = tx.getId();
+        return id >= 0 && id < txs.length && txs[id].equals(tx) ? id : -1;
+    }
+
+    /** Sets the bits of {@code txs} in {@code bits}, skipping transactions not in the universe */
+    public void addAll(long[] bits, Collection<Transaction> txs) {
+        for (Transaction tx : txs) {
+            int ordinal = ordinalOf(tx);
+            if (ordinal >= 0) {
+                bits[ordinal >>> 6] |= 1L << ordinal;
+            }
+        }
+    }
+
+    /** Calls {@code action} on the transaction of every bit set in {@code bits}, in order */
+    public void forEach(long[] bits, Consumer<Transaction> action) {
+        for (int w = 0; w < bits.length; w++) {
+            for (long word = bits[w]; word != 0; word &= word - 1) {
+                action.accept(txs[(w << 6) + Long.numberOfTrailingZeros(word)]);
+            }
+        }
+    }
+
+    /**
+     * Starts a round whose proposals are {@code proposals}: from now on the candidates of each
+     * sender in them are created once, the first time a view of {@link #candidates} needs them,
+     * and shared by every view of the round. Called between rounds, while no view is in use.
+     */
+    void startRound(long[][] proposals) {
+        roundProposals = proposals;
+        roundCandidates = new AtomicReferenceArray<>(proposals.length);
+    }
+
+    /**
+     * Read-only view of the proposals {@code proposals[j]} of every node {@code j} in
+     * {@code senders} as candidates. Its size is counted up front; the candidates of a sender are
+     * created as the view reaches them, so nodes that never look at them cost nothing. Within a
+     * round started with {@link #startRound}, every view shares one array of candidates per
+     * sender, as the set mode of {@link Simulation} does.
+     */
+    public Set<Candidate> candidates(int[] senders, long[][] proposals) {
+        int size = 0;
+        for (int sender : senders) {
+            for (long word : proposals[sender]) {
+                size += Long.bitCount(word);
+            }
+        }
+        int count = size;
+        AtomicReferenceArray<Candidate[]> shared = proposals == roundProposals ? roundCandidates : null;
+        return new AbstractSet<Candidate>() {
+            @Override
+            public int size() {
+                return count;
+            }
+
+            @Override
+            public Iterator<Candidate> iterator() {
+                return new Iterator<Candidate>() {
+                    private int s = 0;                             // position in senders
+                    private int c = 0;                             // position in current
+                    private Candidate[] current = new Candidate[0];  // candidates of senders[s - 1]
+
+                    @Override
+                    public boolean hasNext() {
+                        while (c == current.length && s < senders.length) {
+                            current = candidatesOf(senders[s++], proposals, shared);
+                            c = 0;
+                        }
+                        return c < current.length;
+                    }
+
+                    @Override
+                    public Candidate next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return current[c++];
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * The proposal of {@code sender} as candidates, taken from {@code shared} if it is not null.
+     * Threads racing to create them all end up with the array that made it into {@code shared}.
+     */
+    private Candidate[] candidatesOf(int sender, long[][] proposals, AtomicReferenceArray<Candidate[]> shared) {
+        Candidate[] candidates = shared == null ? null : shared.get(sender);
+        if (candidates != null) {
+            return candidates;
+        }
+        long[] bits = proposals[sender];
+        int size = 0;
+        for (long word : bits) {
+            size += Long.bitCount(word);
+        }
+        Candidate[] created = new Candidate[size];
+        int n = 0;
+        for (int w = 0; w < bits.length; w++) {
+            for (long word = bits[w]; word != 0; word &= word - 1) {
+                created[n++] = new Candidate(sender, txs[(w << 6) + Long.numberOfTrailingZeros(word)]);
+            }
+        }
+        if (shared == null || shared.compareAndSet(sender, null, created)) {
+            return created;
+        }
+        return shared.get(sender);
+    }
+
+    /** The transactions of the bits set in {@code bits} */
+    public Set<Transaction> toSet(long[] bits) {
+        Set<Transaction> set = new HashSet<>();
+        forEach(bits, set::add);
+        return set;
+    }
+}
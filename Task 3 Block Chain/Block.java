@@ -1,22 +1,46 @@
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Block {
 
     public static final double COINBASE = 25;
 
+    /** Block hash covers {@code prevBlockHash} followed by the raw bytes of every transaction */
+    public static final int FORMAT_FLAT = 1;
+    /**
+     * Block hash covers {@code prevBlockHash} followed by the Merkle root of the transaction
+     * hashes, as recomputed from the transactions' contents when the block is finalized
+     */
+    public static final int FORMAT_MERKLE = 2;
+
     private byte[] hash;
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    private int format;
+    /** tree over the hashes of {@code txs}, only kept for {@link #FORMAT_MERKLE} blocks */
+    private MerkleTree merkleTree;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
+        this(prevHash, address, FORMAT_FLAT);
+    }
+
+    /**
+     * {@code address} is the address to which the coinbase transaction would go, {@code format}
+     * is {@link #FORMAT_FLAT} or {@link #FORMAT_MERKLE}
+     */
+    public Block(byte[] prevHash, PublicKey address, int format) {
+        if (format != FORMAT_FLAT && format != FORMAT_MERKLE)
+            throw new IllegalArgumentException("Unknown block format " + format);
         this.prevBlockHash = prevHash;
         this.coinbase = new Transaction(COINBASE, address);
         this.txs = new ArrayList<>();
+        this.format = format;
+        if (format == FORMAT_MERKLE)
+            this.merkleTree = new MerkleTree();
     }
 
     public Transaction getCoinbase() {
@@ -39,10 +63,51 @@ public class Block {
         return txs.get(index);
     }
 
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Adds {@code tx} to the block. For {@link #FORMAT_MERKLE} blocks {@code tx} must already be
+     * finalized; the Merkle root is updated along one path, from the hash {@code tx} claims until
+     * {@link #finalizeBlock} checks it against its contents.
+     */
     public void addTransaction(Transaction tx) {
+        if (merkleTree != null)
+            merkleTree.add(tx.getHash());
         txs.add(tx);
     }
 
+    /** @return the Merkle root of the transaction hashes, or null for {@link #FORMAT_FLAT} blocks */
+    public byte[] getMerkleRoot() {
+        if (merkleTree == null)
+            return null;
+        return merkleTree.getRoot();
+    }
+
+    /**
+     * @return the proof that the transaction at {@code index} is committed to by
+     *         {@link #getMerkleRoot}, or null for {@link #FORMAT_FLAT} blocks
+     */
+    public MerkleTree.Proof getInclusionProof(int index) {
+        if (merkleTree == null)
+            return null;
+        return merkleTree.getProof(index);
+    }
+
+    /**
+     * Checks a payment without the block body: {@code blockHash} must be the hash of a
+     * {@link #FORMAT_MERKLE} block with header ({@code prevBlockHash}, {@code merkleRoot}) and
+     * {@code proof} must link {@code txHash} to {@code merkleRoot}.
+     */
+    public static boolean verifyInclusion(byte[] blockHash, byte[] prevBlockHash, byte[] merkleRoot,
+                                          byte[] txHash, MerkleTree.Proof proof) {
+        if (blockHash == null || merkleRoot == null)
+            return false;
+        return Arrays.equals(blockHash, headerHash(prevBlockHash, merkleRoot))
+                && MerkleTree.verify(txHash, proof, merkleRoot);
+    }
+
     public byte[] getRawBlock() {
         ArrayList<Byte> rawBlock = new ArrayList<>();
         if (prevBlockHash != null) {
@@ -61,14 +126,48 @@ public class Block {
         return raw;
     }
 
+    /**
+     * Hashes the bytes of {@link #getRawBlock}, streaming each transaction into the digest
+     * instead of materializing the raw block. {@link #FORMAT_MERKLE} blocks hash
+     * {@code prevBlockHash} and the Merkle root instead, after recomputing the hash of every
+     * transaction from its contents: a transaction whose claimed hash differs is committed to by
+     * its actual hash, so the root always covers what the block holds.
+     */
     public void finalizeBlock() {
         if (hash != null) return; // Prevent re-finalization
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace(System.err);
+        byte[] scratch = new byte[Double.BYTES];
+        if (merkleTree != null) {
+            MerkleTree contents = null;  // built only once a claimed hash turns out wrong
+            for (int i = 0; i < txs.size(); i++) {
+                MessageDigest md = Crypto.sha256Digest();
+                txs.get(i).digestRawTx(md, scratch);
+                byte[] txHash = md.digest();
+                if (contents == null && !Arrays.equals(txHash, txs.get(i).getHash())) {
+                    contents = new MerkleTree();
+                    for (int j = 0; j < i; j++)
+                        contents.add(txs.get(j).getHash());
+                }
+                if (contents != null)
+                    contents.add(txHash);
+            }
+            if (contents != null)
+                merkleTree = contents;
+            hash = headerHash(prevBlockHash, merkleTree.getRoot());
+            return;
         }
+        MessageDigest md = Crypto.sha256Digest();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        for (Transaction tx : txs)
+            tx.digestRawTx(md, scratch);
+        hash = md.digest();
+    }
+
+    private static byte[] headerHash(byte[] prevBlockHash, byte[] merkleRoot) {
+        MessageDigest md = Crypto.sha256Digest();
+        if (prevBlockHash != null)
+            md.update(prevBlockHash);
+        md.update(merkleRoot);
+        return md.digest();
     }
 }
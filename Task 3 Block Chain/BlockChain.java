@@ -1,46 +1,111 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 
 public class BlockChain {
 
     public static final int CUT_OFF_AGE = 10;
 
+    /** Approximate heap cost of one undo entry: the UTXO with its hash array and two references */
+    private static final int UNDO_ENTRY_BYTES = 80;
+
     // Inner class to keep block info and associated data
     private class BlockNode {
         Block block;
         BlockNode parent;
         int height;
-        UTXOPool utxoPool;
+        BlockUndo undo;  // UTXO changes relative to parent
+        long retainedBytes;  // approximate size of block and undo record
 
-        BlockNode(Block block, BlockNode parent, UTXOPool utxoPool, int height) {
+        BlockNode(Block block, BlockNode parent, BlockUndo undo, int height) {
             this.block = block;
             this.parent = parent;
-            this.utxoPool = utxoPool;
+            this.undo = undo;
             this.height = height;
+            this.retainedBytes = rawSize(block) + (long) undo.size() * UNDO_ENTRY_BYTES;
         }
     }
 
     private HashMap<ByteArrayWrapper, BlockNode> blockChainMap;  // map block hash -> BlockNode
     private TransactionPool transactionPool;
     private BlockNode maxHeightNode;
+    private UTXOPool maxHeightUTXOPool;  // the one live UTXO set, at maxHeightNode
+    private BlockNode rootNode;  // oldest retained block, ancestor of every retained block
+    private long retainedBytes;
+    private UTXOStore utxoStore;  // where the UTXO set at the tip is persisted, or null
+    private BlockStore blockStore;  // where every accepted block is appended, or null
 
     /** Create a new blockchain with just the genesis block */
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, null);
+    }
+
+    /**
+     * Create a blockchain whose UTXO set at the max height block is persisted in {@code utxoStore}.
+     * If the store is empty, {@code block} is the genesis block. Otherwise {@code block} must be
+     * the block the store was last committed at, and the chain restarts from it at the stored
+     * height, with the stored UTXO set and without replaying any earlier block.
+     */
+    public BlockChain(Block block, UTXOStore utxoStore) {
         blockChainMap = new HashMap<>();
         transactionPool = new TransactionPool();
+        this.utxoStore = utxoStore;
 
-        // Create UTXOPool with coinbase tx of genesis block
-        UTXOPool genesisUTXOPool = new UTXOPool();
+        BlockNode rootBlockNode;
+        if (utxoStore != null && !utxoStore.isEmpty()) {
+            if (!Arrays.equals(block.getHash(), utxoStore.getTipHash()))
+                throw new IllegalArgumentException("block is not the block the UTXO store was committed at");
+            maxHeightUTXOPool = utxoStore.getUTXOPool();
+            BlockUndo undo = BlockUndo.diff(block, maxHeightUTXOPool, maxHeightUTXOPool);
+            rootBlockNode = new BlockNode(block, null, undo, utxoStore.getTipHeight());
+        } else {
+            // Create UTXOPool with coinbase tx of genesis block
+            UTXOPool genesisUTXOPool = new UTXOPool();
 
-        // Add coinbase transaction outputs to UTXO pool
-        Transaction coinbaseTx = genesisBlock.getCoinbase();
-        UTXO coinbaseUTXO = new UTXO(coinbaseTx.getHash(), 0);
-        genesisUTXOPool.addUTXO(coinbaseUTXO, coinbaseTx.getOutput(0));
+            // Add coinbase transaction outputs to UTXO pool
+            Transaction coinbaseTx = block.getCoinbase();
+            UTXO coinbaseUTXO = new UTXO(coinbaseTx.getHash(), 0);
+            genesisUTXOPool.addUTXO(coinbaseUTXO, coinbaseTx.getOutput(0));
+
+            // Create the genesis block node with height 1
+            BlockUndo undo = BlockUndo.diff(block, new UTXOPool(), genesisUTXOPool);
+            rootBlockNode = new BlockNode(block, null, undo, 1);
+            maxHeightUTXOPool = genesisUTXOPool;
+        }
+        ByteArrayWrapper hashKey = new ByteArrayWrapper(block.getHash());
+        blockChainMap.put(hashKey, rootBlockNode);
+        maxHeightNode = rootBlockNode;
+        rootNode = rootBlockNode;
+        retainedBytes = rootBlockNode.retainedBytes;
+        if (utxoStore != null && utxoStore.isEmpty())
+            commitTip(Arrays.asList(rootBlockNode.undo.getUTXOs()));
+    }
 
-        // Create the genesis block node with height 1
-        BlockNode genesisNode = new BlockNode(genesisBlock, null, genesisUTXOPool, 1);
-        ByteArrayWrapper hashKey = new ByteArrayWrapper(genesisBlock.getHash());
-        blockChainMap.put(hashKey, genesisNode);
-        maxHeightNode = genesisNode;
+    /**
+     * Open the blockchain kept in {@code blockStore}, with its UTXO set at the max height block in
+     * {@code utxoStore}, which may be null. An empty block store starts a new chain at
+     * {@code genesisBlock}. Otherwise the chain resumes at the block the UTXO store was committed
+     * at and re-adds the blocks stored after it, so blocks accepted before a crash but not yet
+     * reflected in the UTXO store are not lost; without a committed UTXO store every stored block
+     * is replayed from {@code genesisBlock}. Forks that branched off before the resumed block are
+     * not restored.
+     */
+    public static BlockChain open(Block genesisBlock, BlockStore blockStore, UTXOStore utxoStore)
+            throws IOException {
+        Block start = genesisBlock;
+        if (blockStore.isEmpty()) {
+            blockStore.append(genesisBlock);
+        } else if (utxoStore != null && !utxoStore.isEmpty()) {
+            start = blockStore.get(utxoStore.getTipHash());
+            if (start == null)
+                throw new IOException("the block the UTXO store was committed at is not in the block store");
+        } else if (!blockStore.contains(genesisBlock.getHash())) {
+            throw new IllegalArgumentException("genesis block is not in the block store");
+        }
+        BlockChain chain = new BlockChain(start, utxoStore);
+        blockStore.forEach(start.getHash(), chain::addBlock);
+        chain.blockStore = blockStore;
+        return chain;
     }
 
     /** Get the block at maximum height */
@@ -50,7 +115,7 @@ public class BlockChain {
 
     /** Get the UTXOPool for mining a new block on top of max height block */
     public UTXOPool getMaxHeightUTXOPool() {
-        return new UTXOPool(maxHeightNode.utxoPool); // Defensive copy
+        return new UTXOPool(maxHeightUTXOPool); // Defensive copy
     }
 
     /** Get the transaction pool */
@@ -81,9 +146,13 @@ public class BlockChain {
         int newHeight = parentNode.height + 1;
         if (newHeight <= maxHeightNode.height - CUT_OFF_AGE) return false;
 
+        // UTXO state at the parent: the live set itself when extending the tip, otherwise the
+        // live set rolled back to the common ancestor and replayed along the side branch
+        UTXOPool parentUTXOPool = new UTXOPool(maxHeightUTXOPool);
+        moveUTXOPool(parentUTXOPool, maxHeightNode, parentNode);
+
         // Validate all transactions
-        UTXOPool utxoPoolCopy = new UTXOPool(parentNode.utxoPool);
-        TxHandler txHandler = new TxHandler(utxoPoolCopy);
+        TxHandler txHandler = new TxHandler(parentUTXOPool);
 
         // Include coinbase tx
         Transaction coinbaseTx = block.getCoinbase();
@@ -98,31 +167,193 @@ public class BlockChain {
         if (validTxs.length != txArray.length) return false;
 
         // Now add coinbase tx to UTXOPool
+        UTXOPool blockUTXOPool = txHandler.getUTXOPool();
         UTXO coinbaseUTXO = new UTXO(coinbaseTx.getHash(), 0);
-        utxoPoolCopy.addUTXO(coinbaseUTXO, coinbaseTx.getOutput(0));
+        blockUTXOPool.addUTXO(coinbaseUTXO, coinbaseTx.getOutput(0));
 
-        // Create new BlockNode
-        BlockNode newNode = new BlockNode(block, parentNode, utxoPoolCopy, newHeight);
+        // Create new BlockNode, keeping only the UTXO changes of this block
+        BlockUndo undo = BlockUndo.diff(block, parentUTXOPool, blockUTXOPool);
+        // Stored before the UTXO store can be committed at it, so a restart always finds its tip
+        if (blockStore != null) {
+            try {
+                blockStore.append(block);
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot store the block", e);
+            }
+        }
+        BlockNode newNode = new BlockNode(block, parentNode, undo, newHeight);
         ByteArrayWrapper blockHashWrapper = new ByteArrayWrapper(block.getHash());
-        blockChainMap.put(blockHashWrapper, newNode);
+        BlockNode replaced = blockChainMap.put(blockHashWrapper, newNode);
+        retainedBytes += newNode.retainedBytes;
+        if (replaced != null) retainedBytes -= replaced.retainedBytes;
 
         // Update maxHeightNode if needed
         if (newHeight > maxHeightNode.height) {
+            BlockNode oldTip = maxHeightNode;
             maxHeightNode = newNode;
+            maxHeightUTXOPool = blockUTXOPool;
+            persistTip(oldTip, newNode);
+            updateTransactionPool(oldTip, newNode);
+            prune();
         } else if (newHeight == maxHeightNode.height) {
             // If equal height, keep the older block (i.e., do nothing)
         }
 
-        // Remove transactions in this block from transaction pool
-        for (Transaction tx : blockTxs) {
-            transactionPool.removeTransaction(tx.getHash());
+        // A block off the main chain leaves the pool alone; its transactions are dropped from the
+        // pool if and when a later block makes its branch the main chain
+        return true;
+    }
+
+    /**
+     * Moves {@code pool} from the UTXO state at {@code from} to the state at {@code to} by rolling
+     * back blocks down to their common ancestor and applying the blocks leading up to {@code to}.
+     */
+    private void moveUTXOPool(UTXOPool pool, BlockNode from, BlockNode to) {
+        ArrayList<BlockNode> forward = new ArrayList<>();
+        while (from != to) {
+            if (from.height >= to.height) {
+                from.undo.rollback(pool);
+                from = from.parent;
+            } else {
+                forward.add(to);
+                to = to.parent;
+            }
+        }
+        for (int i = forward.size() - 1; i >= 0; i--) {
+            forward.get(i).undo.apply(pool);
         }
+    }
 
-        return true;
+    /**
+     * Commits the UTXO set at {@code newTip} to the store, if there is one, logging the UTXOs
+     * changed by the blocks between {@code oldTip} and {@code newTip}.
+     */
+    private void persistTip(BlockNode oldTip, BlockNode newTip) {
+        if (utxoStore == null) return;
+        LinkedHashSet<UTXO> touched = new LinkedHashSet<>();
+        while (oldTip != newTip) {
+            if (oldTip.height >= newTip.height) {
+                touched.addAll(Arrays.asList(oldTip.undo.getUTXOs()));
+                oldTip = oldTip.parent;
+            } else {
+                touched.addAll(Arrays.asList(newTip.undo.getUTXOs()));
+                newTip = newTip.parent;
+            }
+        }
+        commitTip(touched);
+    }
+
+    /**
+     * Commits the UTXO set at the max height block, which differs from the one committed before
+     * at most on {@code touched}, and continues from the store's copy, which may have just been
+     * compacted into a new snapshot.
+     */
+    private void commitTip(Collection<UTXO> touched) {
+        try {
+            utxoStore.commit(touched, maxHeightUTXOPool, maxHeightNode.block.getHash(), maxHeightNode.height);
+        } catch (IOException e) {
+            throw new UncheckedIOException("cannot persist the UTXO set", e);
+        }
+        maxHeightUTXOPool = utxoStore.getUTXOPool();
+    }
+
+    /**
+     * Brings the transaction pool from {@code oldTip} to {@code newTip}: transactions confirmed by
+     * the newly connected blocks leave the pool along with whatever conflicts with them, then the
+     * transactions of the disconnected blocks, oldest first, go back in if they are still valid.
+     */
+    private void updateTransactionPool(BlockNode oldTip, BlockNode newTip) {
+        ArrayList<BlockNode> disconnected = new ArrayList<>();
+        ArrayList<BlockNode> connected = new ArrayList<>();
+        while (oldTip != newTip) {
+            if (oldTip.height >= newTip.height) {
+                disconnected.add(oldTip);
+                oldTip = oldTip.parent;
+            } else {
+                connected.add(newTip);
+                newTip = newTip.parent;
+            }
+        }
+        for (int i = connected.size() - 1; i >= 0; i--) {
+            transactionPool.blockConnected(connected.get(i).block);
+        }
+        for (int i = disconnected.size() - 1; i >= 0; i--) {
+            transactionPool.blockDisconnected(disconnected.get(i).block, maxHeightUTXOPool);
+        }
+    }
+
+    /**
+     * Evicts the blocks that can no longer matter. Only blocks at height
+     * {@code maxHeight - CUT_OFF_AGE} or above can still be extended; every other block is kept
+     * only while it lies between such a block and the oldest common ancestor of all of them,
+     * since fork switching rolls the UTXO set back to that ancestor at most.
+     */
+    private void prune() {
+        int cutOffHeight = maxHeightNode.height - CUT_OFF_AGE;
+        if (rootNode.height >= cutOffHeight) return;
+
+        // Mark the extendable blocks and their ancestors, counting live children per block
+        IdentityHashMap<BlockNode, BlockNode> liveChild = new IdentityHashMap<>();
+        IdentityHashMap<BlockNode, Integer> liveChildren = new IdentityHashMap<>();
+        Set<BlockNode> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BlockNode node : blockChainMap.values()) {
+            if (node.height < cutOffHeight) continue;
+            BlockNode child = null;
+            while (node != null && live.add(node)) {
+                if (child != null) {
+                    liveChild.put(node, child);
+                    liveChildren.merge(node, 1, Integer::sum);
+                }
+                child = node;
+                node = node.parent;
+            }
+            if (node != null && child != null) {
+                liveChild.put(node, child);
+                liveChildren.merge(node, 1, Integer::sum);
+            }
+        }
+
+        // The new root is the deepest block that is an ancestor of every extendable block
+        BlockNode newRoot = rootNode;
+        while (newRoot.height < cutOffHeight && liveChildren.getOrDefault(newRoot, 0) == 1) {
+            newRoot = liveChild.get(newRoot);
+        }
+        if (newRoot == rootNode && live.size() == blockChainMap.size()) return;
+
+        Iterator<BlockNode> it = blockChainMap.values().iterator();
+        while (it.hasNext()) {
+            BlockNode node = it.next();
+            if (!live.contains(node) || node.height < newRoot.height) {
+                it.remove();
+                retainedBytes -= node.retainedBytes;
+            }
+        }
+        // Nothing is ever rolled back past the root, let the older blocks be collected
+        newRoot.parent = null;
+        rootNode = newRoot;
+    }
+
+    /** @return the number of blocks currently kept in memory */
+    public int getRetainedBlockCount() {
+        return blockChainMap.size();
+    }
+
+    /** @return the approximate number of bytes held by the retained blocks and their undo records */
+    public long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    private static long rawSize(Block block) {
+        long size = block.getPrevBlockHash() == null ? 0 : block.getPrevBlockHash().length;
+        size += block.getCoinbase().getRawTxSize();
+        for (Transaction tx : block.getTransactions()) {
+            size += tx.getRawTxSize();
+        }
+        return size;
     }
 
-    /** Add a transaction to the transaction pool */
+    /** Add a transaction to the transaction pool if it is valid on top of the max height block */
     public void addTransaction(Transaction tx) {
-        transactionPool.addTransaction(tx);
+        transactionPool.addTransaction(tx, maxHeightUTXOPool);
     }
 }
@@ -0,0 +1,355 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary encoding of blocks and transactions for storage and transfer. Unlike
+ * {@link Block#getRawBlock} and {@link Transaction#getRawTx}, which only feed the hashes, every
+ * field is delimited so the objects can be decoded again, and decoded objects are re-hashed.
+ *
+ * An encoding starts with a version byte, a tag (block or transaction) and the length of the
+ * body as a varint, so a stream of them can be split without decoding. Counts, lengths and output
+ * indices are unsigned varints; byte arrays are a varint of their length plus one, 0 meaning null.
+ * Each public key is written in X.509 form the first time it appears in a body and then referred
+ * to by its position among the keys seen so far.
+ */
+public class BlockCodec {
+
+    public static final int VERSION = 2;
+
+    private static final int TAG_BLOCK = 1;
+    private static final int TAG_TRANSACTION = 2;
+
+    /** @return the encoding of {@code block}, which must be finalized */
+    public static byte[] encode(Block block) {
+        Writer body = new Writer();
+        body.writeByte(block.getFormat());
+        body.writeBytes(block.getHash());
+        body.writeBytes(block.getPrevBlockHash());
+        body.writeKey(block.getCoinbase().getOutput(0).address);
+        body.writeVarint(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            body.writeTransaction(tx);
+        return body.frame(TAG_BLOCK);
+    }
+
+    /** @return the encoding of {@code tx}, a non-coinbase transaction */
+    public static byte[] encode(Transaction tx) {
+        Writer body = new Writer();
+        body.writeTransaction(tx);
+        return body.frame(TAG_TRANSACTION);
+    }
+
+    /**
+     * Decodes one block starting at the position of {@code buf}, leaving the position after it.
+     *
+     * @throws IllegalArgumentException if the bytes are not a complete, valid encoding of a block
+     */
+    public static Block decode(ByteBuffer buf) {
+        return new Decoder(buf).decodeBlock();
+    }
+
+    /**
+     * Decodes one transaction starting at the position of {@code buf}, leaving the position after it.
+     *
+     * @throws IllegalArgumentException if the bytes are not a complete, valid encoding of a transaction
+     */
+    public static Transaction decodeTransaction(ByteBuffer buf) {
+        return new Decoder(buf).decodeTransaction();
+    }
+
+    /**
+     * Decodes consecutive encodings from a buffer that may end in the middle of one, such as a
+     * buffer being filled from a socket. Fields are read in place from the buffer, without first
+     * copying the encoding out, and the last {@link #KEY_CACHE_SIZE} public keys decoded are
+     * remembered across encodings.
+     */
+    public static class Decoder {
+        /** Decoded public keys a decoder keeps, so a peer cannot make it hold every key it sends */
+        public static final int KEY_CACHE_SIZE = 1024;
+
+        private final ByteBuffer buf;
+
+        /** Decoded keys by their X.509 encoding, in access order */
+        private final LinkedHashMap<ByteArrayWrapper, PublicKey> keyCache =
+                new LinkedHashMap<ByteArrayWrapper, PublicKey>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, PublicKey> eldest) {
+                        return size() > KEY_CACHE_SIZE;
+                    }
+                };
+
+        /** Decodes from {@code buf}, starting at its position */
+        public Decoder(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * @return true if a complete encoding starts at the position of the buffer
+         * @throws IllegalArgumentException if the bytes there cannot start an encoding
+         */
+        public boolean hasNext() {
+            return frameLength(buf.duplicate()) >= 0;
+        }
+
+        /**
+         * @return the block starting at the position of the buffer, or null if its encoding is not
+         *         complete yet, in which case the position is left unchanged
+         * @throws IllegalArgumentException if the bytes are not a valid encoding of a block
+         */
+        public Block nextBlock() {
+            return hasNext() ? decodeBlock() : null;
+        }
+
+        /**
+         * @return the transaction starting at the position of the buffer, or null if its encoding
+         *         is not complete yet, in which case the position is left unchanged
+         * @throws IllegalArgumentException if the bytes are not a valid encoding of a transaction
+         */
+        public Transaction nextTransaction() {
+            return hasNext() ? decodeTransaction() : null;
+        }
+
+        Block decodeBlock() {
+            try {
+                ByteBuffer body = openFrame(TAG_BLOCK);
+                ArrayList<PublicKey> keys = new ArrayList<>();
+                int format = body.get();
+                byte[] hash = readBytes(body);
+                byte[] prevHash = readBytes(body);
+                Block block = new Block(prevHash, readKey(body, keys), format);
+                int txCount = readCount(body);
+                for (int t = 0; t < txCount; t++)
+                    block.addTransaction(readTransaction(body, keys));
+                closeFrame(body);
+                block.finalizeBlock();
+                if (!Arrays.equals(hash, block.getHash()))
+                    throw new IllegalArgumentException("block does not match its stored hash");
+                return block;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("truncated block encoding", e);
+            }
+        }
+
+        Transaction decodeTransaction() {
+            try {
+                ByteBuffer body = openFrame(TAG_TRANSACTION);
+                Transaction tx = readTransaction(body, new ArrayList<>());
+                closeFrame(body);
+                return tx;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("truncated transaction encoding", e);
+            }
+        }
+
+        /** Reads the frame header and returns a view of the body, which must be complete */
+        private ByteBuffer openFrame(int tag) {
+            int version = buf.get();
+            if (version != VERSION)
+                throw new IllegalArgumentException("unknown encoding version " + version);
+            if (buf.get() != tag)
+                throw new IllegalArgumentException(tag == TAG_BLOCK ? "not a block" : "not a transaction");
+            int length = readCount(buf);
+            ByteBuffer body = buf.duplicate();
+            body.limit(buf.position() + length);
+            buf.position(buf.position() + length);
+            return body;
+        }
+
+        private static void closeFrame(ByteBuffer body) {
+            if (body.hasRemaining())
+                throw new IllegalArgumentException("trailing bytes after encoding");
+        }
+
+        private Transaction readTransaction(ByteBuffer body, ArrayList<PublicKey> keys) {
+            Transaction tx = new Transaction();
+            int inputs = readCount(body);
+            for (int i = 0; i < inputs; i++) {
+                byte[] prevTxHash = readBytes(body);
+                tx.addInput(prevTxHash, (int) readVarint(body));
+                tx.getInput(i).addSignature(readBytes(body));
+            }
+            int outputs = readCount(body);
+            for (int i = 0; i < outputs; i++) {
+                double value = body.getDouble();
+                tx.addOutput(value, readKey(body, keys));
+            }
+            tx.finalizeTransaction();
+            return tx;
+        }
+
+        /** Reads a key reference: 0 and a new key, or the position of a key seen before plus one */
+        private PublicKey readKey(ByteBuffer body, ArrayList<PublicKey> keys) {
+            long ref = readVarint(body);
+            if (ref > keys.size())
+                throw new IllegalArgumentException("bad key reference " + ref);
+            if (ref > 0)
+                return keys.get((int) ref - 1);
+            byte[] encoded = readBytes(body);
+            if (encoded == null)
+                throw new IllegalArgumentException("missing public key");
+            PublicKey key = decodeKey(encoded);
+            keys.add(key);
+            return key;
+        }
+
+        private PublicKey decodeKey(byte[] encoded) {
+            ByteArrayWrapper wrapper = new ByteArrayWrapper(encoded);
+            PublicKey key = keyCache.get(wrapper);
+            if (key == null) {
+                try {
+                    key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalArgumentException("bad public key", e);
+                }
+                keyCache.put(wrapper, key);
+            }
+            return key;
+        }
+
+    }
+
+    /**
+     * @return the length of the encoding starting at the position of {@code buf}, or -1 if it is
+     *         not all there yet; moves the position of {@code buf}
+     * @throws IllegalArgumentException if the version is unknown or the length is not a varint of
+     *         at most 32 bits, which no number of further bytes would fix
+     */
+    private static long frameLength(ByteBuffer buf) {
+        if (!buf.hasRemaining())
+            return -1;
+        int version = buf.get();
+        if (version != VERSION)
+            throw new IllegalArgumentException("unknown encoding version " + version);
+        if (!buf.hasRemaining())
+            return -1;
+        buf.get();
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28)
+                throw new IllegalArgumentException("varint longer than 32 bits");
+            if (!buf.hasRemaining())
+                return -1;
+            byte b = buf.get();
+            length |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                break;
+        }
+        return buf.remaining() >= length ? length : -1;
+    }
+
+    /** @return an unsigned varint of at most 32 bits */
+    private static long readVarint(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("varint longer than 32 bits");
+    }
+
+    /** @return a varint that is a count or length, at most the number of bytes left */
+    private static int readCount(ByteBuffer buf) {
+        long count = readVarint(buf);
+        if (count > buf.remaining())
+            throw new IllegalArgumentException("bad count " + count);
+        return (int) count;
+    }
+
+    /** Reads an array written by {@link Writer#writeBytes}, null included */
+    private static byte[] readBytes(ByteBuffer buf) {
+        long lengthPlusOne = readVarint(buf);
+        if (lengthPlusOne == 0)
+            return null;
+        if (lengthPlusOne - 1 > buf.remaining())
+            throw new IllegalArgumentException("bad length " + (lengthPlusOne - 1));
+        byte[] bytes = new byte[(int) lengthPlusOne - 1];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /** Growable buffer for one body, with the keys written so far */
+    private static class Writer {
+        private byte[] bytes = new byte[256];
+        private int size;
+        private final HashMap<PublicKey, Integer> keyIds = new HashMap<>();
+
+        void writeTransaction(Transaction tx) {
+            writeVarint(tx.numInputs());
+            for (Transaction.Input in : tx.getInputs()) {
+                writeBytes(in.prevTxHash);
+                writeVarint(in.outputIndex & 0xffffffffL);
+                writeBytes(in.signature);
+            }
+            writeVarint(tx.numOutputs());
+            for (Transaction.Output op : tx.getOutputs()) {
+                ensure(Double.BYTES);
+                ByteBuffer.wrap(bytes, size, Double.BYTES).putDouble(op.value);
+                size += Double.BYTES;
+                writeKey(op.address);
+            }
+        }
+
+        void writeKey(PublicKey key) {
+            Integer id = keyIds.get(key);
+            if (id != null) {
+                writeVarint(id + 1);
+                return;
+            }
+            keyIds.put(key, keyIds.size());
+            writeVarint(0);
+            writeBytes(key.getEncoded());
+        }
+
+        void writeBytes(byte[] b) {
+            if (b == null) {
+                writeVarint(0);
+                return;
+            }
+            writeVarint(b.length + 1L);
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        void writeVarint(long value) {
+            ensure(5);
+            while (value >= 0x80) {
+                bytes[size++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        /** @return the version, {@code tag} and length of the body, followed by the body */
+        byte[] frame(int tag) {
+            Writer header = new Writer();
+            header.writeByte(VERSION);
+            header.writeByte(tag);
+            header.writeVarint(size);
+            byte[] frame = Arrays.copyOf(header.bytes, header.size + size);
+            System.arraycopy(bytes, 0, frame, header.size, size);
+            return frame;
+        }
+
+        private void ensure(int n) {
+            if (size + n > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + n));
+        }
+    }
+}
@@ -21,6 +21,14 @@ public class BlockHandler {
 
     /** Create a new {@code block} over the max height {@code block} */
     public Block createBlock(PublicKey myAddress) {
+        return createBlock(myAddress, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a new {@code block} over the max height {@code block} holding at most {@code maxTxs}
+     * transactions, highest fee rate first
+     */
+    public Block createBlock(PublicKey myAddress, int maxTxs) {
         Block parent = blockChain.getMaxHeightBlock();
         if (parent == null) {
             // No blocks yet; can't create new block
@@ -33,13 +41,12 @@ public class BlockHandler {
         UTXOPool utxoPool = blockChain.getMaxHeightUTXOPool();
         TransactionPool txPool = blockChain.getTransactionPool();
 
-        // Create TxHandler with current UTXO pool
-        TxHandler handler = new TxHandler(utxoPool);
-
-        // Get transactions from the transaction pool
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
+        // Pull the best ready transactions from the pool's fee index
+        Transaction[] txs = txPool.selectTransactions(utxoPool, maxTxs).toArray(new Transaction[0]);
 
-        // Handle transactions: filter valid ones
+        // Pool transactions were verified on admission, so this only re-checks the picked ones
+        // against the signature cache
+        TxHandler handler = new TxHandler(utxoPool);
         Transaction[] validTxs = handler.handleTxs(txs);
 
         // Add valid transactions to new block
@@ -0,0 +1,319 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of every block the chain accepted, in a directory of segment files plus an
+ * index from block hash to position.
+ *
+ * Blocks are appended, encoded by {@link BlockCodec}, to the newest segment as a record of
+ * length, CRC32 and payload; a segment is sealed once the next block would take it past the
+ * configured size. Each append also adds (hash, segment, offset, length) to {@code blocks.idx},
+ * which is loaded on open so no block is decoded to find another one. Reads map the segment and
+ * return a read-only view of the record, without copying it.
+ *
+ * Segments are written before the index. On open, index entries pointing past the end of their
+ * segment are dropped, and records written after the last indexed one are checked against their
+ * CRC, decoded and re-indexed; a torn record at the end is cut off.
+ */
+public class BlockStore implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+    private static final String INDEX_FILE = "blocks.idx";
+    private static final String SEGMENT_PREFIX = "blocks-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    /**
+     * Where a block is stored: its payload starts at {@code offset} in segment {@code segment}.
+     * {@code position} is its place in append order, which is not written to the index file.
+     */
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+        int position;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final HashMap<ByteArrayWrapper, Location> index = new HashMap<>();
+    private final ArrayList<byte[]> order = new ArrayList<>();  // block hashes in append order
+    private final ArrayList<MappedByteBuffer> mapped = new ArrayList<>();  // per segment, or null
+    private FileChannel indexChannel;
+    private long indexSize;
+    private FileChannel segment;  // the segment appended to
+    private int segmentNumber;
+    private long segmentSize;
+
+    private BlockStore(Path dir, long segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /** Opens the store in {@code dir}, creating it if needed */
+    public static BlockStore open(Path dir) throws IOException {
+        return open(dir, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /** Opens the store in {@code dir}, creating it if needed, starting a segment every {@code segmentBytes} */
+    public static BlockStore open(Path dir, long segmentBytes) throws IOException {
+        if (segmentBytes <= 0 || segmentBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("segmentBytes must be positive and below 2 GiB");
+        Files.createDirectories(dir);
+        BlockStore store = new BlockStore(dir, segmentBytes);
+        store.recover();
+        return store;
+    }
+
+    /** @return true if no block is stored */
+    public boolean isEmpty() {
+        return order.isEmpty();
+    }
+
+    /** @return the number of blocks stored */
+    public int size() {
+        return order.size();
+    }
+
+    /** @return true if the block with hash {@code hash} is stored */
+    public boolean contains(byte[] hash) {
+        return index.containsKey(new ByteArrayWrapper(hash));
+    }
+
+    /**
+     * Appends {@code block} unless it is already stored, forcing it and its index entry to the
+     * device.
+     *
+     * @return true if the block was appended
+     */
+    public boolean append(Block block) throws IOException {
+        ByteArrayWrapper key = new ByteArrayWrapper(block.getHash());
+        if (index.containsKey(key))
+            return false;
+        byte[] payload = BlockCodec.encode(block);
+        if (segmentSize > 0 && segmentSize + RECORD_HEADER_BYTES + payload.length > segmentBytes)
+            startSegment(segmentNumber + 1);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        Location loc = new Location(segmentNumber, segmentSize + RECORD_HEADER_BYTES, payload.length);
+        writeFully(segment, record, segmentSize);
+        segment.force(false);
+        segmentSize += record.capacity();
+
+        ByteBuffer entry = indexEntry(block.getHash(), loc);
+        writeFully(indexChannel, entry, indexSize);
+        indexChannel.force(false);
+        indexSize += entry.capacity();
+
+        loc.position = order.size();
+        index.put(key, loc);
+        order.add(block.getHash().clone());
+        return true;
+    }
+
+    /**
+     * @return a read-only view of the encoded block with hash {@code hash}, backed by the mapped
+     *         segment, or null if it is not stored. This is what to hand to a peer.
+     */
+    public ByteBuffer getEncoded(byte[] hash) throws IOException {
+        Location loc = index.get(new ByteArrayWrapper(hash));
+        if (loc == null)
+            return null;
+        MappedByteBuffer map = mapped.get(loc.segment);
+        if (map == null || map.capacity() < loc.offset + loc.length) {
+            // Sealed segments are mapped once; the one being appended to is remapped as it grows
+            try (FileChannel channel = FileChannel.open(segmentFile(loc.segment), StandardOpenOption.READ)) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            mapped.set(loc.segment, map);
+        }
+        return map.slice((int) loc.offset, loc.length).asReadOnlyBuffer();
+    }
+
+    /** @return the block with hash {@code hash}, or null if it is not stored */
+    public Block get(byte[] hash) throws IOException {
+        ByteBuffer encoded = getEncoded(hash);
+        return encoded == null ? null : BlockCodec.decode(encoded);
+    }
+
+    /**
+     * Calls {@code action} on every block appended after the block with hash {@code afterHash},
+     * or on every block if {@code afterHash} is null, in the order they were appended.
+     *
+     * @throws IOException if no block with hash {@code afterHash} is stored
+     */
+    public void forEach(byte[] afterHash, Consumer<Block> action) throws IOException {
+        int start = 0;
+        if (afterHash != null) {
+            Location after = index.get(new ByteArrayWrapper(afterHash));
+            if (after == null)
+                throw new IOException("the block to start after is not in the block store");
+            start = after.position + 1;
+        }
+        for (int i = start; i < order.size(); i++)
+            action.accept(get(order.get(i)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        segment.close();
+        indexChannel.close();
+    }
+
+    /** Loads the index, repairs it against the segments and opens the newest segment for appends */
+    private void recover() throws IOException {
+        TreeMap<Integer, Long> segmentSizes = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                segmentSizes.put(number, Files.size(file));
+            }
+        }
+        int last = segmentSizes.isEmpty() ? 0 : segmentSizes.lastKey();
+        for (int i = 0; i <= last; i++)
+            mapped.add(null);
+
+        // Index entries, up to the first that is torn or points past its segment
+        indexChannel = FileChannel.open(dir.resolve(INDEX_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(indexChannel.size()));
+        readFully(indexChannel, buf, 0);
+        buf.flip();
+        int lastSegment = 0;
+        long lastEnd = 0;
+        while (buf.remaining() >= 4) {
+            int start = buf.position();
+            int hashLength = buf.getInt();
+            if (hashLength < 0 || buf.remaining() < hashLength + 16) {
+                buf.position(start);
+                break;
+            }
+            byte[] hash = new byte[hashLength];
+            buf.get(hash);
+            Location loc = new Location(buf.getInt(), buf.getLong(), buf.getInt());
+            Long size = segmentSizes.get(loc.segment);
+            if (size == null || loc.offset + loc.length > size) {
+                buf.position(start);
+                break;
+            }
+            loc.position = order.size();
+            index.put(new ByteArrayWrapper(hash), loc);
+            order.add(hash);
+            lastSegment = loc.segment;
+            lastEnd = loc.offset + loc.length;
+        }
+        indexSize = buf.position();
+        indexChannel.truncate(indexSize);
+
+        // Blocks written after the last indexed one, in its segment and any later ones
+        for (int number = lastSegment; number <= last; number++) {
+            if (!segmentSizes.containsKey(number))
+                continue;
+            startSegment(number);
+            segmentSize = number == lastSegment ? lastEnd : 0;
+            reindexTail();
+        }
+        if (segment == null)
+            startSegment(last);
+    }
+
+    /** Indexes the valid records after {@code segmentSize} in the current segment and cuts off the rest */
+    private void reindexTail() throws IOException {
+        long size = segment.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (segmentSize + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(segment, header, segmentSize);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || segmentSize + RECORD_HEADER_BYTES + length > size)
+                break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(segment, payload, segmentSize + RECORD_HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum)
+                break;
+            Block block;
+            try {
+                block = BlockCodec.decode(ByteBuffer.wrap(payload.array()));
+            } catch (IllegalArgumentException e) {
+                break;
+            }
+            Location loc = new Location(segmentNumber, segmentSize + RECORD_HEADER_BYTES, length);
+            ByteBuffer entry = indexEntry(block.getHash(), loc);
+            writeFully(indexChannel, entry, indexSize);
+            indexSize += entry.capacity();
+            loc.position = order.size();
+            index.put(new ByteArrayWrapper(block.getHash()), loc);
+            order.add(block.getHash().clone());
+            segmentSize += RECORD_HEADER_BYTES + length;
+        }
+        segment.truncate(segmentSize);
+        indexChannel.force(false);
+    }
+
+    /** Makes segment {@code number} the one appended to, creating it if needed */
+    private void startSegment(int number) throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        segment = FileChannel.open(segmentFile(number), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentNumber = number;
+        segmentSize = segment.size();
+        while (mapped.size() <= number)
+            mapped.add(null);
+    }
+
+    private Path segmentFile(int number) {
+        return dir.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static ByteBuffer indexEntry(byte[] hash, Location loc) {
+        ByteBuffer entry = ByteBuffer.allocate(4 + hash.length + 16);
+        entry.putInt(hash.length).put(hash).putInt(loc.segment).putLong(loc.offset).putInt(loc.length);
+        entry.flip();
+        return entry;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw new IOException("unexpected end of " + channel);
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * The UTXO changes made by one block: for every UTXO it touched, the output before and after the
+ * block (null meaning absent). Applying sets the "after" outputs, rolling back restores the
+ * "before" outputs, so a single UTXO set can be moved between the tips of different forks.
+ */
+public class BlockUndo {
+
+    private final UTXO[] utxos;
+    private final Transaction.Output[] before;
+    private final Transaction.Output[] after;
+
+    private BlockUndo(UTXO[] utxos, Transaction.Output[] before, Transaction.Output[] after) {
+        this.utxos = utxos;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Records the difference between {@code beforePool} and {@code afterPool} on the UTXOs spent
+     * or created by {@code block}, including its coinbase.
+     */
+    public static BlockUndo diff(Block block, UTXOPool beforePool, UTXOPool afterPool) {
+        LinkedHashSet<UTXO> touched = new LinkedHashSet<UTXO>();
+        ArrayList<Transaction> txs = new ArrayList<Transaction>(block.getTransactions());
+        txs.add(block.getCoinbase());
+        for (Transaction tx : txs) {
+            for (Transaction.Input in : tx.getInputs())
+                touched.add(new UTXO(in.prevTxHash, in.outputIndex));
+            for (int i = 0; i < tx.numOutputs(); i++)
+                touched.add(new UTXO(tx.getHash(), i));
+        }
+
+        ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+        ArrayList<Transaction.Output> before = new ArrayList<Transaction.Output>();
+        ArrayList<Transaction.Output> after = new ArrayList<Transaction.Output>();
+        for (UTXO utxo : touched) {
+            Transaction.Output b = beforePool.getTxOutput(utxo);
+            Transaction.Output a = afterPool.getTxOutput(utxo);
+            // created and spent inside the block, or left as it was (a snapshot hands out the
+            // same output on every lookup; equal outputs from elsewhere compare by value)
+            if (b == a || (b != null && b.equals(a)))
+                continue;
+            utxos.add(utxo);
+            before.add(b);
+            after.add(a);
+        }
+        return new BlockUndo(utxos.toArray(new UTXO[utxos.size()]),
+                before.toArray(new Transaction.Output[before.size()]),
+                after.toArray(new Transaction.Output[after.size()]));
+    }
+
+    /** Moves {@code pool} from the state before the block to the state after it */
+    public void apply(UTXOPool pool) {
+        set(pool, after);
+    }
+
+    /** Moves {@code pool} from the state after the block back to the state before it */
+    public void rollback(UTXOPool pool) {
+        set(pool, before);
+    }
+
+    /** @return the number of UTXOs the block changed */
+    public int size() {
+        return utxos.length;
+    }
+
+    /** @return the UTXOs the block changed */
+    public UTXO[] getUTXOs() {
+        return utxos.clone();
+    }
+
+    private void set(UTXOPool pool, Transaction.Output[] outputs) {
+        for (int i = 0; i < utxos.length; i++) {
+            if (outputs[i] == null)
+                pool.removeUTXO(utxos[i]);
+            else
+                pool.addUTXO(utxos[i], outputs[i]);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Binary Merkle tree over transaction hashes, built incrementally as leaves are appended.
+ *
+ * A leaf node is SHA-256 of 0x00 followed by the leaf, an inner node SHA-256 of 0x01 followed
+ * by its left and right child. When a level has an odd number of nodes the last one is carried
+ * up unchanged rather than paired with itself. Since a leaf node never equals an inner node,
+ * two different leaf lists never share a root, whatever their lengths. Appending a leaf only
+ * recomputes the rightmost path, O(log n) hashes.
+ */
+public class MerkleTree {
+
+    /** Root of a tree without leaves */
+    public static final byte[] EMPTY_ROOT = new byte[32];
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    /** levels.get(0) are the leaf nodes, the last level holds the root */
+    private final ArrayList<ArrayList<byte[]>> levels;
+
+    /** Proof that a leaf is included under a root: the sibling hashes from leaf to root */
+    public static class Proof {
+        private final byte[][] siblings;
+        private final boolean[] siblingOnLeft;
+
+        public Proof(byte[][] siblings, boolean[] siblingOnLeft) {
+            this.siblings = siblings;
+            this.siblingOnLeft = siblingOnLeft;
+        }
+
+        /** @return the number of sibling hashes in the proof */
+        public int length() {
+            return siblings.length;
+        }
+
+        /** @return the sibling hash combined at step {@code i}, starting at the leaf */
+        public byte[] getSibling(int i) {
+            return siblings[i];
+        }
+
+        /** @return true if the sibling at step {@code i} is the left operand */
+        public boolean isSiblingOnLeft(int i) {
+            return siblingOnLeft[i];
+        }
+    }
+
+    public MerkleTree() {
+        levels = new ArrayList<ArrayList<byte[]>>();
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /** @return the number of leaves */
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    /** Appends {@code leaf} and recomputes the path from it to the root */
+    public void add(byte[] leaf) {
+        if (leaf == null)
+            throw new IllegalArgumentException("Merkle leaf must not be null");
+        ArrayList<byte[]> leaves = levels.get(0);
+        leaves.add(hashLeaf(leaf));
+
+        int index = leaves.size() - 1;
+        for (int l = 0; levels.get(l).size() > 1; l++) {
+            ArrayList<byte[]> level = levels.get(l);
+            int parent = index >> 1;
+            byte[] left = level.get(parent << 1);
+            int right = (parent << 1) + 1;
+            byte[] node = right < level.size() ? hashPair(left, level.get(right)) : left;
+
+            if (levels.size() == l + 1)
+                levels.add(new ArrayList<byte[]>());
+            ArrayList<byte[]> up = levels.get(l + 1);
+            if (parent < up.size())
+                up.set(parent, node);
+            else
+                up.add(node);
+            index = parent;
+        }
+    }
+
+    /** @return the root hash, or {@link #EMPTY_ROOT} if there are no leaves */
+    public byte[] getRoot() {
+        if (size() == 0)
+            return EMPTY_ROOT.clone();
+        for (ArrayList<byte[]> level : levels) {
+            if (level.size() == 1)
+                return level.get(0).clone();
+        }
+        throw new IllegalStateException("Merkle tree has no root level");
+    }
+
+    /** @return the inclusion proof of the leaf at {@code index} */
+    public Proof getProof(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("No Merkle leaf at index " + index);
+        ArrayList<byte[]> siblings = new ArrayList<byte[]>();
+        ArrayList<Boolean> onLeft = new ArrayList<Boolean>();
+        for (int l = 0; levels.get(l).size() > 1; l++) {
+            ArrayList<byte[]> level = levels.get(l);
+            int sibling = index ^ 1;
+            // The last node of an odd level is carried up and has no sibling
+            if (sibling < level.size()) {
+                siblings.add(level.get(sibling).clone());
+                onLeft.add(sibling < index);
+            }
+            index >>= 1;
+        }
+        boolean[] flags = new boolean[onLeft.size()];
+        for (int i = 0; i < flags.length; i++)
+            flags[i] = onLeft.get(i);
+        return new Proof(siblings.toArray(new byte[siblings.size()][]), flags);
+    }
+
+    /** @return true if {@code proof} links {@code leaf} to {@code root} */
+    public static boolean verify(byte[] leaf, Proof proof, byte[] root) {
+        if (leaf == null || proof == null || root == null)
+            return false;
+        byte[] node = hashLeaf(leaf);
+        for (int i = 0; i < proof.length(); i++) {
+            node = proof.isSiblingOnLeft(i) ? hashPair(proof.getSibling(i), node)
+                    : hashPair(node, proof.getSibling(i));
+        }
+        return Arrays.equals(node, root);
+    }
+
+    private static byte[] hashLeaf(byte[] leaf) {
+        MessageDigest md = Crypto.sha256Digest();
+        md.update(LEAF_PREFIX);
+        md.update(leaf);
+        return md.digest();
+    }
+
+    private static byte[] hashPair(byte[] left, byte[] right) {
+        MessageDigest md = Crypto.sha256Digest();
+        md.update(NODE_PREFIX);
+        md.update(left);
+        md.update(right);
+        return md.digest();
+    }
+}
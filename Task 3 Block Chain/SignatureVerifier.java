@@ -0,0 +1,190 @@
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verification stage that checks the signatures of a whole batch of transactions in parallel
+ * before the UTXO-dependent checks of {@link TxHandler} run.
+ *
+ * Every input is resolved to the public key of the output it claims, either from the UTXO pool
+ * or from another transaction of the same batch, and all (publicKey, rawDataToSign, signature)
+ * triples are verified on a {@link ForkJoinPool}. Inputs already in the {@link SignatureCache}
+ * are not verified again.
+ */
+public class SignatureVerifier {
+
+    /*
+     * Measured on one machine: an RSA-512 verification takes 23 us (76 us for RSA-2048), a cache
+     * hit 1-2 us, handing a batch to a pool 8 us and every forked task 0.24 us. A leaf of 8 keeps
+     * the forking below 2% of even an all-cached batch, and a batch goes to the pool only once it
+     * splits into at least two leaves and the hand-off costs less than its cache hits.
+     */
+
+    /** Below this many inputs the batch is verified on the caller thread */
+    private static final int MIN_PARALLEL_INPUTS = 16;
+
+    /** Number of signatures verified by one fork-join leaf task */
+    private static final int LEAF_SIZE = 8;
+
+    private static final SignatureVerifier COMMON = new SignatureVerifier(ForkJoinPool.commonPool());
+
+    private final ForkJoinPool forkJoinPool;
+
+    /**
+     * Creates a verifier backed by {@code forkJoinPool}. The verifier never shuts the pool down;
+     * that is up to whoever created it.
+     */
+    public SignatureVerifier(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    /** @return a verifier backed by the common fork-join pool */
+    public static SignatureVerifier commonPool() {
+        return COMMON;
+    }
+
+    /** Result of verifying a batch: the key each input was successfully verified against */
+    public static class Batch {
+        private final IdentityHashMap<Transaction, PublicKey[]> verifiedKeys;
+
+        private Batch(IdentityHashMap<Transaction, PublicKey[]> verifiedKeys) {
+            this.verifiedKeys = verifiedKeys;
+        }
+
+        /** @return true if every input of {@code tx} carries a valid signature */
+        public boolean isFullyVerified(Transaction tx) {
+            PublicKey[] keys = verifiedKeys.get(tx);
+            if (keys == null)
+                return false;
+            for (PublicKey key : keys) {
+                if (key == null)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the signature of input {@code index} of {@code tx} was verified against
+         *         {@code pubKey}
+         */
+        public boolean isVerified(Transaction tx, int index, PublicKey pubKey) {
+            PublicKey[] keys = verifiedKeys.get(tx);
+            return keys != null && index < keys.length && keys[index] != null
+                    && keys[index].equals(pubKey);
+        }
+
+        /**
+         * @return the transactions of {@code txs} whose inputs are all verified, in their original
+         *         order. The others can never pass {@link TxHandler#isValidTx}.
+         */
+        public Transaction[] filter(Transaction[] txs) {
+            ArrayList<Transaction> verified = new ArrayList<Transaction>();
+            for (Transaction tx : txs) {
+                if (tx != null && isFullyVerified(tx))
+                    verified.add(tx);
+            }
+            return verified.toArray(new Transaction[verified.size()]);
+        }
+    }
+
+    /**
+     * Verifies the signature of every input of every transaction in {@code txs}. Inputs are
+     * resolved against {@code utxoPool} first and then against the outputs of {@code txs}
+     * themselves, so chains of transactions within the batch are verified in one go.
+     */
+    public Batch verify(Transaction[] txs, UTXOPool utxoPool, SignatureCache signatureCache) {
+        HashMap<ByteArrayWrapper, Transaction> batchTxs = new HashMap<ByteArrayWrapper, Transaction>();
+        for (Transaction tx : txs) {
+            if (tx != null && tx.getHash() != null)
+                batchTxs.put(new ByteArrayWrapper(tx.getHash()), tx);
+        }
+
+        // Resolve every input on the caller thread, the pool is not shared with the workers
+        IdentityHashMap<Transaction, PublicKey[]> verifiedKeys = new IdentityHashMap<Transaction, PublicKey[]>();
+        ArrayList<Transaction> jobTxs = new ArrayList<Transaction>();
+        ArrayList<Integer> jobInputs = new ArrayList<Integer>();
+        ArrayList<PublicKey> jobKeys = new ArrayList<PublicKey>();
+        for (Transaction tx : txs) {
+            if (tx == null || verifiedKeys.containsKey(tx))
+                continue;
+            verifiedKeys.put(tx, new PublicKey[tx.numInputs()]);
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input in = tx.getInput(i);
+                Transaction.Output prevOut = resolve(in, utxoPool, batchTxs);
+                if (prevOut == null || in.signature == null)
+                    continue;
+                jobTxs.add(tx);
+                jobInputs.add(i);
+                jobKeys.add(prevOut.address);
+            }
+        }
+
+        int n = jobTxs.size();
+        boolean[] valid = new boolean[n];
+        VerifyTask task = new VerifyTask(jobTxs, jobInputs, jobKeys, signatureCache, valid, 0, n);
+        if (n < MIN_PARALLEL_INPUTS)
+            task.compute();
+        else
+            forkJoinPool.invoke(task);
+
+        for (int j = 0; j < n; j++) {
+            if (valid[j])
+                verifiedKeys.get(jobTxs.get(j))[jobInputs.get(j)] = jobKeys.get(j);
+        }
+        return new Batch(verifiedKeys);
+    }
+
+    /** @return the output claimed by {@code in}, or null if it is neither in the pool nor the batch */
+    private static Transaction.Output resolve(Transaction.Input in, UTXOPool utxoPool,
+                                              HashMap<ByteArrayWrapper, Transaction> batchTxs) {
+        if (in.prevTxHash == null)
+            return null;
+        Transaction.Output prevOut = utxoPool.getTxOutput(in.prevTxHash, in.outputIndex);
+        if (prevOut != null)
+            return prevOut;
+        Transaction parent = batchTxs.get(new ByteArrayWrapper(in.prevTxHash));
+        if (parent == null || in.outputIndex < 0)
+            return null;
+        return parent.getOutput(in.outputIndex);
+    }
+
+    /** Verifies the signatures in {@code [from, to)}, splitting the range across workers */
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Transaction> txs;
+        private final ArrayList<Integer> inputs;
+        private final ArrayList<PublicKey> keys;
+        private final SignatureCache signatureCache;
+        private final boolean[] valid;
+        private final int from;
+        private final int to;
+
+        VerifyTask(ArrayList<Transaction> txs, ArrayList<Integer> inputs, ArrayList<PublicKey> keys,
+                   SignatureCache signatureCache, boolean[] valid, int from, int to) {
+            this.txs = txs;
+            this.inputs = inputs;
+            this.keys = keys;
+            this.signatureCache = signatureCache;
+            this.valid = valid;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                for (int j = from; j < to; j++) {
+                    valid[j] = signatureCache.verifySignature(txs.get(j), inputs.get(j), keys.get(j));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new VerifyTask(txs, inputs, keys, signatureCache, valid, from, mid),
+                    new VerifyTask(txs, inputs, keys, signatureCache, valid, mid, to));
+        }
+    }
+}
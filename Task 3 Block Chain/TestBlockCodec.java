@@ -0,0 +1,129 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class TestBlockCodec {
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        PublicKey[] keys = new PublicKey[3];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = keyGen.generateKeyPair().getPublic();
+        Random random = new Random(20);
+
+        // 1. Blocks and transactions decode to what was encoded, in both block formats
+        List<Block> blocks = new ArrayList<>();
+        byte[] prevHash = null;
+        for (int i = 0; i < 8; i++) {
+            Block block = new Block(prevHash, keys[i % keys.length], i % 2 == 0 ? Block.FORMAT_FLAT : Block.FORMAT_MERKLE);
+            for (int t = 0; t < i; t++)
+                block.addTransaction(transaction(keys, random));
+            block.finalizeBlock();
+            blocks.add(block);
+            prevHash = block.getHash();
+        }
+        for (Block block : blocks) {
+            byte[] encoded = BlockCodec.encode(block);
+            ByteBuffer buf = ByteBuffer.wrap(encoded);
+            Block decoded = BlockCodec.decode(buf);
+            check(!buf.hasRemaining(), "decoding consumes the whole encoding");
+            check(Arrays.equals(decoded.getHash(), block.getHash()) && decoded.getFormat() == block.getFormat(),
+                    "decoded block has the same hash and format");
+            check(Arrays.equals(decoded.getRawBlock(), block.getRawBlock()), "decoded block has the same contents");
+            check(Arrays.equals(BlockCodec.encode(decoded), encoded), "decoded block encodes the same");
+            for (Transaction tx : block.getTransactions()) {
+                Transaction decodedTx = BlockCodec.decodeTransaction(ByteBuffer.wrap(BlockCodec.encode(tx)));
+                check(Arrays.equals(decodedTx.getRawTx(), tx.getRawTx()) && Arrays.equals(decodedTx.getHash(), tx.getHash()),
+                        "decoded transaction has the same contents and hash");
+            }
+        }
+        System.out.println("Blocks and transactions round trip");
+
+        // 2. A stream filled a few bytes at a time yields each block once it is complete
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (Block block : blocks)
+            stream.write(BlockCodec.encode(block));
+        byte[] bytes = stream.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocate(bytes.length);
+        buf.flip();
+        BlockCodec.Decoder decoder = new BlockCodec.Decoder(buf);
+        int fed = 0;
+        int decoded = 0;
+        while (fed < bytes.length) {
+            int n = Math.min(bytes.length - fed, 1 + random.nextInt(64));
+            int position = buf.position();
+            buf.limit(buf.limit() + n).position(buf.limit() - n);
+            buf.put(bytes, fed, n).position(position);
+            fed += n;
+            for (Block block; (block = decoder.nextBlock()) != null; decoded++)
+                check(Arrays.equals(block.getHash(), blocks.get(decoded).getHash()), "stream yields blocks in order");
+        }
+        check(decoded == blocks.size() && !buf.hasRemaining(), "stream yields every block");
+        System.out.println("Stream of " + bytes.length + " bytes yields " + decoded + " blocks");
+
+        // 3. A frame that can never be completed is rejected instead of waiting for more bytes
+        byte[] encoded = BlockCodec.encode(blocks.get(3));
+        check(!new BlockCodec.Decoder(ByteBuffer.wrap(encoded, 0, encoded.length - 1)).hasNext(),
+                "a truncated frame is incomplete");
+        check(!new BlockCodec.Decoder(ByteBuffer.wrap(encoded, 0, 2)).hasNext(), "a frame header cut short is incomplete");
+        byte[] badVersion = encoded.clone();
+        badVersion[0] = 1;
+        rejected(new BlockCodec.Decoder(ByteBuffer.wrap(badVersion)), "an unknown version is rejected");
+        byte[] longLength = { BlockCodec.VERSION, 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80 };
+        rejected(new BlockCodec.Decoder(ByteBuffer.wrap(longLength)), "a length longer than 32 bits is rejected");
+
+        // 4. Corrupt or truncated encodings fail with IllegalArgumentException only
+        int accepted = 0;
+        for (int i = 0; i < 2000; i++) {
+            byte[] corrupt = encoded.clone();
+            if (random.nextBoolean())
+                corrupt = Arrays.copyOf(corrupt, random.nextInt(corrupt.length));
+            else
+                corrupt[random.nextInt(corrupt.length)] ^= 1 + random.nextInt(255);
+            try {
+                Block block = BlockCodec.decode(ByteBuffer.wrap(corrupt));
+                check(Arrays.equals(block.getHash(), blocks.get(3).getHash()), "a corrupt encoding decodes to the block");
+                accepted++;
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        System.out.println("Corrupt encodings rejected, " + accepted + " of 2000 still decode to the block");
+    }
+
+    /** @return a transaction with random inputs and signatures paying some of {@code keys} */
+    private static Transaction transaction(PublicKey[] keys, Random random) {
+        Transaction tx = new Transaction();
+        for (int i = 0, inputs = 1 + random.nextInt(3); i < inputs; i++) {
+            byte[] prevTxHash = new byte[32];
+            random.nextBytes(prevTxHash);
+            tx.addInput(prevTxHash, random.nextInt(4));
+            byte[] signature = new byte[64];
+            random.nextBytes(signature);
+            tx.addSignature(signature, i);
+        }
+        for (int i = 0, outputs = 1 + random.nextInt(3); i < outputs; i++)
+            tx.addOutput(random.nextInt(1000) / 8.0, keys[random.nextInt(keys.length)]);
+        tx.finalizeTransaction();
+        return tx;
+    }
+
+    private static void rejected(BlockCodec.Decoder decoder, String what) {
+        try {
+            decoder.hasNext();
+        } catch (IllegalArgumentException expected) {
+            return;
+        }
+        throw new AssertionError(what);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
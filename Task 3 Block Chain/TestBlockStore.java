@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class TestBlockStore {
+
+    private static final long SEGMENT_BYTES = 1024;
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        PublicKey miner = keyGen.generateKeyPair().getPublic();
+        Path dir = Files.createTempDirectory("blockstore");
+
+        // 1. Appended blocks read back as they were written, across several segments
+        List<Block> blocks = new ArrayList<>();
+        byte[] prevHash = null;
+        for (int i = 0; i < 20; i++) {
+            Block block = new Block(prevHash, miner);
+            block.finalizeBlock();
+            blocks.add(block);
+            prevHash = block.getHash();
+        }
+        BlockStore store = BlockStore.open(dir, SEGMENT_BYTES);
+        check(store.isEmpty(), "a new store is empty");
+        for (Block block : blocks)
+            check(store.append(block), "block is appended");
+        check(!store.append(blocks.get(3)), "a stored block is not appended twice");
+        check(store.size() == blocks.size(), "every block is stored once");
+        check(segments(dir) > 1, "blocks are spread over several segments");
+        for (Block block : blocks) {
+            check(Arrays.equals(store.get(block.getHash()).getHash(), block.getHash()), "stored block reads back");
+            ByteBuffer encoded = store.getEncoded(block.getHash());
+            check(encoded.isReadOnly() && Arrays.equals(toArray(encoded), BlockCodec.encode(block)),
+                    "encoded block is the codec output");
+        }
+        check(store.get(new byte[32]) == null && !store.contains(new byte[32]), "unknown hash is not stored");
+        System.out.println("Blocks read back from " + segments(dir) + " segments");
+
+        // 2. forEach starts after the given block, and refuses a block that is not stored
+        check(hashes(store, null).equals(hashes(blocks, 0)), "forEach(null) visits every block in order");
+        check(hashes(store, blocks.get(12).getHash()).equals(hashes(blocks, 13)), "forEach starts after the block");
+        check(hashes(store, blocks.get(19).getHash()).isEmpty(), "nothing follows the last block");
+        try {
+            store.forEach(new byte[32], block -> { });
+            throw new AssertionError("forEach after an unknown block throws");
+        } catch (IOException expected) {
+        }
+        System.out.println("forEach follows append order");
+
+        // 3. A reopened store has the same blocks in the same order
+        store.close();
+        store = BlockStore.open(dir, SEGMENT_BYTES);
+        check(store.size() == blocks.size(), "reopened store has every block");
+        check(hashes(store, blocks.get(4).getHash()).equals(hashes(blocks, 5)), "reopened store keeps the order");
+        System.out.println("Reopened store keeps its blocks");
+
+        // 4. Lost index entries are rebuilt from the segments and a torn record is cut off
+        store.close();
+        Path indexFile = dir.resolve("blocks.idx");
+        try (FileChannel index = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+            index.truncate(index.size() - 100);
+        }
+        Path lastSegment;
+        try (Stream<Path> files = Files.list(dir)) {
+            lastSegment = files.filter(p -> p.toString().endsWith(".dat")).sorted().reduce((a, b) -> b).get();
+        }
+        long segmentSize = Files.size(lastSegment);
+        Files.write(lastSegment, new byte[] { 0, 0, 1, 0, 5, 5 }, StandardOpenOption.APPEND);
+        store = BlockStore.open(dir, SEGMENT_BYTES);
+        check(store.size() == blocks.size(), "repaired store has every block");
+        check(hashes(store, null).equals(hashes(blocks, 0)), "repaired store keeps the order");
+        check(Files.size(lastSegment) == segmentSize, "torn record is cut off");
+        Block next = new Block(prevHash, miner);
+        next.finalizeBlock();
+        check(store.append(next), "repaired store takes new blocks");
+        check(hashes(store, prevHash).equals(List.of(Arrays.toString(next.getHash()))), "new block follows the old ones");
+        store.close();
+        System.out.println("Torn store is repaired");
+    }
+
+    private static long segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".dat")).count();
+        }
+    }
+
+    private static List<String> hashes(BlockStore store, byte[] afterHash) throws IOException {
+        List<String> hashes = new ArrayList<>();
+        store.forEach(afterHash, block -> hashes.add(Arrays.toString(block.getHash())));
+        return hashes;
+    }
+
+    private static List<String> hashes(List<Block> blocks, int from) {
+        List<String> hashes = new ArrayList<>();
+        for (Block block : blocks.subList(from, blocks.size()))
+            hashes.add(Arrays.toString(block.getHash()));
+        return hashes;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,70 @@
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+public class TestMerkleTree {
+
+    public static void main(String[] args) throws Exception {
+        // 1. Every leaf of trees of 1 to 33 leaves has a proof that verifies, and only for itself
+        for (int n = 1; n <= 33; n++) {
+            MerkleTree tree = new MerkleTree();
+            for (int i = 0; i < n; i++)
+                tree.add(leaf(i));
+            for (int i = 0; i < n; i++) {
+                MerkleTree.Proof proof = tree.getProof(i);
+                check(MerkleTree.verify(leaf(i), proof, tree.getRoot()), "proof of leaf " + i + " of " + n);
+                check(!MerkleTree.verify(leaf(n + i), proof, tree.getRoot()), "proof of another leaf, " + i + " of " + n);
+            }
+        }
+        System.out.println("Proofs of 1 to 33 leaves verify");
+
+        // 2. [a, b, c] and [H(a, b), c] used to share a root, since c is carried up unchanged
+        MerkleTree abc = tree(leaf(0), leaf(1), leaf(2));
+        MessageDigest md = Crypto.sha256Digest();
+        md.update(leaf(0));
+        md.update(leaf(1));
+        byte[] ab = md.digest();
+        check(!Arrays.equals(abc.getRoot(), tree(ab, leaf(2)).getRoot()), "[a, b, c] and [H(a, b), c] have different roots");
+        check(!Arrays.equals(tree(leaf(0)).getRoot(), leaf(0)), "a single leaf is hashed into the root");
+        System.out.println("Leaf and inner nodes are domain separated");
+
+        // 3. A Merkle block commits to what its transactions contain, not to the hashes they claim
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        PublicKey owner = keyGen.generateKeyPair().getPublic();
+        PublicKey attacker = keyGen.generateKeyPair().getPublic();
+        Transaction paid = new Transaction(10, owner);
+        Transaction forged = new Transaction(10, attacker);
+        forged.setHash(paid.getHash());
+
+        Block honest = new Block(null, owner, Block.FORMAT_MERKLE);
+        honest.addTransaction(paid);
+        honest.finalizeBlock();
+        Block lying = new Block(null, owner, Block.FORMAT_MERKLE);
+        lying.addTransaction(forged);
+        lying.finalizeBlock();
+        check(!Arrays.equals(honest.getHash(), lying.getHash()), "a forged transaction hash changes the block hash");
+        check(!Block.verifyInclusion(lying.getHash(), null, lying.getMerkleRoot(), paid.getHash(), lying.getInclusionProof(0)),
+                "the claimed hash is not proven included");
+        check(Block.verifyInclusion(honest.getHash(), null, honest.getMerkleRoot(), paid.getHash(), honest.getInclusionProof(0)),
+                "the honest transaction is proven included");
+        System.out.println("Merkle blocks commit to transaction contents");
+    }
+
+    private static MerkleTree tree(byte[]... leaves) {
+        MerkleTree tree = new MerkleTree();
+        for (byte[] leaf : leaves)
+            tree.add(leaf);
+        return tree;
+    }
+
+    private static byte[] leaf(int i) {
+        return Crypto.sha256(new byte[] { (byte) (i >> 8), (byte) i });
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
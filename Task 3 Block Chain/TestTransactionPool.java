@@ -0,0 +1,138 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestTransactionPool {
+
+    private static KeyPair owner;
+    private static Transaction funding;
+    private static UTXOPool utxoPool;
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        owner = keyGen.generateKeyPair();
+        funding = new Transaction();
+        for (int i = 0; i < 8; i++)
+            funding.addOutput(10, owner.getPublic());
+        funding.finalizeTransaction();
+        utxoPool = new UTXOPool();
+        for (int i = 0; i < funding.numOutputs(); i++)
+            utxoPool.addUTXO(new UTXO(funding.getHash(), i), funding.getOutput(i));
+
+        // 1. Blocks take the best ready transactions, a child right after its parent
+        TransactionPool pool = new TransactionPool();
+        Transaction low = spend(funding, 0, 0.1);
+        Transaction high = spend(funding, 1, 0.5);
+        Transaction mid = spend(funding, 2, 0.3);
+        Transaction child = spend(low, 0, 2);
+        for (Transaction tx : Arrays.asList(low, high, mid, child))
+            check(pool.addTransaction(tx, utxoPool), "valid transaction is admitted");
+        check(Math.abs(pool.getFee(child.getHash()) - 2) < 1e-9, "admitted with its fee");
+        Transaction forged = spend(funding, 3, 0.1);
+        forged.getInput(0).addSignature(child.getInput(0).signature);
+        forged.finalizeTransaction();
+        check(!pool.addTransaction(forged, utxoPool), "badly signed transaction is turned away");
+        check(pool.selectTransactions(utxoPool, 10).equals(Arrays.asList(high, mid, low, child)),
+                "selection is by fee rate, children after their parents");
+        check(pool.selectTransactions(utxoPool, 2).equals(Arrays.asList(high, mid)), "selection stops at maxTxs");
+        System.out.println("Selection follows fee rate and dependencies");
+
+        // 2. A double spend replaces the conflicting transactions only if it pays more than all of them
+        pool = new TransactionPool();
+        Transaction first = spend(funding, 3, 0.2);
+        Transaction firstChild = spend(first, 0, 0.2);
+        pool.addTransaction(first, utxoPool);
+        pool.addTransaction(firstChild, utxoPool);
+        check(!pool.addTransaction(spend(funding, 3, 0.3), utxoPool), "double spend paying less than the package is rejected");
+        check(pool.size() == 2 && pool.getSpendingTransaction(new UTXO(funding.getHash(), 3)) == first,
+                "rejected double spend leaves the pool as it was");
+        Transaction replacement = spend(funding, 3, 1);
+        check(pool.addTransaction(replacement, utxoPool), "double spend paying more is admitted");
+        check(pool.size() == 1 && pool.getTransaction(first.getHash()) == null && pool.getTransaction(firstChild.getHash()) == null,
+                "replaced transaction is evicted with its descendants");
+        check(pool.getSpendingTransaction(new UTXO(funding.getHash(), 3)) == replacement, "replacement owns the outpoint");
+        System.out.println("Double spends replace by fee");
+
+        // 3. Past the budget the lowest-scoring package goes, counting what its children pay
+        pool = new TransactionPool(3, Long.MAX_VALUE, Long.MAX_VALUE);
+        Transaction[] ladder = { spend(funding, 0, 0.1), spend(funding, 1, 0.4), spend(funding, 2, 0.3), spend(funding, 3, 0.2) };
+        for (Transaction tx : ladder)
+            pool.addTransaction(tx, utxoPool);
+        check(pool.size() == 3 && pool.getTransaction(ladder[0].getHash()) == null, "lowest fee rate is evicted");
+        check(!pool.addTransaction(spend(funding, 5, 0.01), utxoPool), "transaction evicted on arrival is reported");
+
+        pool = new TransactionPool(4, Long.MAX_VALUE, Long.MAX_VALUE);
+        Transaction poorParent = spend(funding, 4, 0.05);
+        Transaction richChild = spend(poorParent, 0, 3);
+        for (Transaction tx : Arrays.asList(ladder[1], ladder[2], ladder[3], poorParent, richChild))
+            pool.addTransaction(tx, utxoPool);
+        check(pool.size() == 4 && contains(pool, ladder[1], ladder[2], poorParent, richChild),
+                "parent paid for by its child outlives better-paying transactions");
+
+        long size = ladder[0].getRawTxSize();
+        pool = new TransactionPool(100, 2 * size + size / 2, Long.MAX_VALUE);
+        for (Transaction tx : ladder)
+            pool.addTransaction(tx, utxoPool);
+        check(pool.size() == 2 && pool.getTotalBytes() <= 2 * size + size / 2, "byte budget holds");
+        check(contains(pool, ladder[1], ladder[2]), "byte budget keeps the best transactions");
+        System.out.println("Budgets evict the lowest packages");
+
+        // 4. Transactions expire with their descendants once older than the maximum age
+        pool = new TransactionPool(100, Long.MAX_VALUE, 60000);
+        long added = System.currentTimeMillis();
+        Transaction old = spend(funding, 6, 0.1);
+        pool.addTransaction(old, utxoPool);
+        pool.addTransaction(spend(old, 0, 0.1), utxoPool);
+        pool.expire(added + 30000);
+        check(pool.size() == 2, "young transactions stay");
+        pool.expire(System.currentTimeMillis() + 60001);
+        check(pool.size() == 0 && pool.getTotalBytes() == 0, "old transactions expire with their descendants");
+        System.out.println("Old transactions expire");
+
+        // 5. A block evicts the pool transactions it confirms and those conflicting with it
+        pool = new TransactionPool();
+        Transaction confirmed = spend(funding, 6, 0.1);
+        Transaction loser = spend(funding, 7, 0.1);
+        Transaction loserChild = spend(loser, 0, 0.1);
+        for (Transaction tx : Arrays.asList(confirmed, loser, loserChild))
+            pool.addTransaction(tx, utxoPool);
+        Block block = new Block(new byte[32], owner.getPublic());
+        block.addTransaction(confirmed);
+        block.addTransaction(spend(funding, 7, 0.2));
+        block.finalizeBlock();
+        pool.blockConnected(block);
+        check(pool.size() == 0 && pool.getSpendingTransaction(new UTXO(funding.getHash(), 7)) == null,
+                "confirmed and conflicting transactions leave the pool");
+        System.out.println("Connected blocks clear the pool");
+    }
+
+    /** @return a transaction paying output {@code index} of {@code parent}, less {@code fee}, back to the owner */
+    private static Transaction spend(Transaction parent, int index, double fee) throws Exception {
+        Transaction tx = new Transaction();
+        tx.addInput(parent.getHash(), index);
+        tx.addOutput(parent.getOutput(index).value - fee, owner.getPublic());
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(owner.getPrivate());
+        sig.update(tx.getRawDataToSign(0));
+        tx.addSignature(sig.sign(), 0);
+        tx.finalizeTransaction();
+        return tx;
+    }
+
+    private static boolean contains(TransactionPool pool, Transaction... txs) {
+        List<Transaction> pooled = pool.getTransactions();
+        for (Transaction tx : txs) {
+            if (!pooled.contains(tx))
+                return false;
+        }
+        return true;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,127 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class TestUTXOStore {
+
+    private static final Transaction OWNER = new Transaction();
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(512);
+        PublicKey[] keys = new PublicKey[4];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = keyGen.generateKeyPair().getPublic();
+        Random random = new Random(18);
+        Path dir = Files.createTempDirectory("utxostore");
+        Path logFile = dir.resolve("utxo.log");
+
+        // 1. Committed changes survive reopening the store, replayed from the log
+        UTXOStore store = UTXOStore.open(dir, Long.MAX_VALUE);
+        check(store.isEmpty(), "a new store is empty");
+        UTXOPool pool = new UTXOPool();
+        List<UTXO> live = new ArrayList<>();
+        int height = 0;
+        for (int round = 0; round < 5; round++)
+            store.commit(change(pool, live, keys, random), pool, tip(++height), height);
+        store.close();
+        store = UTXOStore.open(dir, Long.MAX_VALUE);
+        check(store.getTipHeight() == height && Arrays.equals(store.getTipHash(), tip(height)), "reopened at the last commit");
+        check(content(store.getUTXOPool()).equals(content(pool)), "log replays to the committed set");
+        System.out.println("Log replays " + pool.size() + " UTXOs");
+
+        // 2. A torn record after the last commit is cut off
+        store.close();
+        long logSize = Files.size(logFile);
+        Files.write(logFile, new byte[] { 1, 0, 0, 0, 32, 7, 7 }, StandardOpenOption.APPEND);
+        store = UTXOStore.open(dir, Long.MAX_VALUE);
+        check(store.getLogSize() == logSize && store.getTipHeight() == height, "torn record is cut off");
+        check(content(store.getUTXOPool()).equals(content(pool)), "torn log keeps the committed set");
+        System.out.println("Torn log is repaired");
+
+        // 3. A compacted store reads from its snapshot, handing out the same output every time
+        store.compact();
+        store.close();
+        store = UTXOStore.open(dir, Long.MAX_VALUE);
+        check(content(store.getUTXOPool()).equals(content(pool)), "snapshot holds the committed set");
+        for (UTXO utxo : live)
+            check(store.getUTXOPool().getTxOutput(utxo) == store.getUTXOPool().getTxOutput(utxo),
+                    "a snapshot UTXO reads back as the same output");
+        UTXOPool before = store.getUTXOPool();
+        UTXOPool after = new UTXOPool(before);
+        Block block = new Block(tip(height), keys[0]);
+        Transaction coinbase = block.getCoinbase();
+        after.addUTXO(new UTXO(coinbase.getHash(), 0), coinbase.getOutput(0));
+        check(BlockUndo.diff(block, before, after).size() == 1, "undo of a snapshot pool holds only the new UTXO");
+        System.out.println("Snapshot outputs are decoded once");
+
+        // 4. Commits after the snapshot are replayed on top of it
+        for (int round = 0; round < 3; round++)
+            store.commit(change(pool, live, keys, random), pool, tip(++height), height);
+        store.close();
+        store = UTXOStore.open(dir, Long.MAX_VALUE);
+        check(store.getTipHeight() == height, "reopened at the commit after the snapshot");
+        check(content(store.getUTXOPool()).equals(content(pool)), "log replays on top of the snapshot");
+        System.out.println("Log replays on top of the snapshot");
+
+        // 5. A crash between renaming the snapshot and emptying the log replays nothing twice
+        Path staleLog = dir.resolve("stale.log");
+        Files.copy(logFile, staleLog);
+        store.compact();
+        store.close();
+        Files.move(staleLog, logFile, StandardCopyOption.REPLACE_EXISTING);
+        store = UTXOStore.open(dir, Long.MAX_VALUE);
+        check(store.getTipHeight() == height && Arrays.equals(store.getTipHash(), tip(height)), "stale log is ignored");
+        check(content(store.getUTXOPool()).equals(content(pool)), "snapshot alone holds the committed set");
+        store.commit(change(pool, live, keys, random), pool, tip(++height), height);
+        store.close();
+        store = UTXOStore.open(dir, Long.MAX_VALUE);
+        check(content(store.getUTXOPool()).equals(content(pool)), "store takes commits after the crash");
+        store.close();
+        System.out.println("Crash during compaction is recovered");
+    }
+
+    /** Spends a few UTXOs of pool and adds new ones, returning the UTXOs touched */
+    private static List<UTXO> change(UTXOPool pool, List<UTXO> live, PublicKey[] keys, Random random) {
+        List<UTXO> touched = new ArrayList<>();
+        for (int i = 0; i < 3 && !live.isEmpty(); i++) {
+            UTXO spent = live.remove(random.nextInt(live.size()));
+            pool.removeUTXO(spent);
+            touched.add(spent);
+        }
+        for (int i = 0; i < 20; i++) {
+            byte[] txHash = new byte[random.nextInt(10) == 0 ? 20 : 32];
+            random.nextBytes(txHash);
+            UTXO utxo = new UTXO(txHash, random.nextInt(4));
+            pool.addUTXO(utxo, OWNER.new Output(random.nextInt(100), keys[random.nextInt(keys.length)]));
+            live.add(utxo);
+            touched.add(utxo);
+        }
+        return touched;
+    }
+
+    private static Map<UTXO, Transaction.Output> content(UTXOPool pool) {
+        Map<UTXO, Transaction.Output> content = new HashMap<>();
+        pool.forEach(content::put);
+        check(content.size() == pool.size(), "pool size matches its UTXOs");
+        return content;
+    }
+
+    private static byte[] tip(int height) {
+        return Crypto.sha256(new byte[] { (byte) (height >> 8), (byte) height });
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
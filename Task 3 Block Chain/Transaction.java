@@ -1,10 +1,10 @@
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 
 public class Transaction {
 
@@ -73,11 +73,24 @@ public class Transaction {
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        /** encoding of {@code address} used by the raw formats, rebuilt if address is reassigned */
+        private AddressBytes encodedAddress;
+
         public Output(double v, PublicKey addr) {
             value = v;
             address = addr;
         }
 
+        /** @return the exponent bytes followed by the modulus bytes of {@code address} */
+        byte[] getEncodedAddress() {
+            AddressBytes enc = encodedAddress;
+            if (enc == null || enc.key != address) {
+                enc = new AddressBytes(address);
+                encodedAddress = enc;
+            }
+            return enc.bytes;
+        }
+
         public boolean equals(Object other) {
             if (other == null) {
                 return false;
@@ -157,98 +170,128 @@ public class Transaction {
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            if (ut.matches(in.prevTxHash, in.outputIndex)) {
                 inputs.remove(i);
                 return;
             }
         }
     }
 
+    /** Up to this many inputs, repeated claims are looked for pairwise rather than with a set */
+    private static final int PAIRWISE_DUPLICATE_CHECK = 16;
+
+    /** @return true if two inputs claim the same output */
+    public boolean hasDuplicateInputs() {
+        int n = inputs.size();
+        if (n > PAIRWISE_DUPLICATE_CHECK) {
+            HashSet<UTXO> claimed = new HashSet<UTXO>();
+            for (Input in : inputs) {
+                if (in.prevTxHash != null && !claimed.add(new UTXO(in.prevTxHash, in.outputIndex)))
+                    return true;
+            }
+            return false;
+        }
+        for (int i = 1; i < n; i++) {
+            Input in = inputs.get(i);
+            for (int j = 0; j < i; j++) {
+                Input other = inputs.get(j);
+                if (in.outputIndex == other.outputIndex && in.prevTxHash != null
+                        && Arrays.equals(in.prevTxHash, other.prevTxHash))
+                    return true;
+            }
+        }
+        return false;
+    }
+
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
         if (index >= inputs.size())
             return null;
         Input in = inputs.get(index);
         byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
+        int size = Integer.BYTES + rawOutputsSize();
         if (prevTxHash != null)
-            for (byte bb : prevTxHash)
-                sigData.add(bb);
-        for (byte bb : outputIndex)
-            sigData.add(bb);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (byte bbb : value)
-                sigData.add(bbb);
-            for (byte bbb : addressExponent)
-                sigData.add(bbb);
-            for (byte bbb : addressModulus)
-                sigData.add(bbb);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+            size += prevTxHash.length;
+
+        ByteBuffer sigData = ByteBuffer.allocate(size);
+        if (prevTxHash != null)
+            sigData.put(prevTxHash);
+        sigData.putInt(in.outputIndex);
+        putRawOutputs(sigData);
+        return sigData.array();
     }
 
     public void addSignature(byte[] signature, int index) {
         inputs.get(index).addSignature(signature);
     }
 
+    /** @return the length of {@link #getRawTx}, computed without building it */
+    public int getRawTxSize() {
+        int size = rawOutputsSize();
+        for (Input in : inputs) {
+            size += Integer.BYTES;
+            if (in.prevTxHash != null)
+                size += in.prevTxHash.length;
+            if (in.signature != null)
+                size += in.signature.length;
+        }
+        return size;
+    }
+
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        ByteBuffer rawTx = ByteBuffer.allocate(getRawTxSize());
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (byte bb : prevTxHash)
-                    rawTx.add(bb);
-            for (byte bb : outputIndex)
-                rawTx.add(bb);
-            if (signature != null)
-                for (byte bb : signature)
-                    rawTx.add(bb);
+            if (in.prevTxHash != null)
+                rawTx.put(in.prevTxHash);
+            rawTx.putInt(in.outputIndex);
+            if (in.signature != null)
+                rawTx.put(in.signature);
         }
+        putRawOutputs(rawTx);
+        return rawTx.array();
+    }
+
+    /** @return the number of bytes {@link #putRawOutputs} writes */
+    private int rawOutputsSize() {
+        int size = 0;
+        for (Output op : outputs)
+            size += Double.BYTES + op.getEncodedAddress().length;
+        return size;
+    }
+
+    /** Writes the value and encoded address of every output, as signed and hashed */
+    private void putRawOutputs(ByteBuffer buf) {
         for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (byte bb : value)
-                rawTx.add(bb);
-            for (byte bb : addressExponent)
-                rawTx.add(bb);
-            for (byte bb : addressModulus)
-                rawTx.add(bb);
+            buf.putDouble(op.value);
+            buf.put(op.getEncodedAddress());
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
     }
 
-    public void finalizeTransaction() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+    /**
+     * Feeds exactly the bytes of {@link #getRawTx} to {@code md} without building the array.
+     * {@code scratch} must hold at least {@code Double.BYTES} bytes.
+     */
+    public void digestRawTx(MessageDigest md, byte[] scratch) {
+        ByteBuffer buf = ByteBuffer.wrap(scratch);
+        for (Input in : inputs) {
+            if (in.prevTxHash != null)
+                md.update(in.prevTxHash);
+            buf.putInt(0, in.outputIndex);
+            md.update(scratch, 0, Integer.BYTES);
+            if (in.signature != null)
+                md.update(in.signature);
         }
+        for (Output op : outputs) {
+            buf.putDouble(0, op.value);
+            md.update(scratch, 0, Double.BYTES);
+            md.update(op.getEncodedAddress());
+        }
+    }
+
+    public void finalizeTransaction() {
+        MessageDigest md = Crypto.sha256Digest();
+        digestRawTx(md, new byte[Double.BYTES]);
+        hash = md.digest();
     }
 
     public void setHash(byte[] h) {
@@ -327,4 +370,18 @@ public class Transaction {
         }
         return hash;
     }
+
+    /** Immutable pair of a key and its raw encoding, safe to publish to verifier threads */
+    private static class AddressBytes {
+        private final PublicKey key;
+        private final byte[] bytes;
+
+        AddressBytes(PublicKey key) {
+            byte[] exponent = ((RSAPublicKey) key).getPublicExponent().toByteArray();
+            byte[] modulus = ((RSAPublicKey) key).getModulus().toByteArray();
+            this.key = key;
+            this.bytes = Arrays.copyOf(exponent, exponent.length + modulus.length);
+            System.arraycopy(modulus, 0, bytes, exponent.length, modulus.length);
+        }
+    }
 }
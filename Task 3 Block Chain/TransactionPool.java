@@ -1,34 +1,445 @@
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
 
+/**
+ * Pending transactions, indexed by hash, by fee rate and by the outpoints they spend.
+ *
+ * Transactions admitted through {@link #addTransaction(Transaction, UTXOPool)} are validated once
+ * against the UTXO set at the tip (plus the outputs of pool transactions they spend) and carry
+ * their fee, so {@link #selectTransactions} can hand out the best ready transactions without
+ * scanning or re-verifying the whole pool. No two pool transactions spend the same outpoint: a
+ * conflicting transaction either replaces the ones it conflicts with or is turned away.
+ *
+ * The pool is bounded by a transaction count, a byte budget over the raw transaction encodings
+ * and a maximum age. When a budget is exceeded, the package with the lowest descendant score
+ * (a transaction plus everything spending from it) is evicted first; transactions older than the
+ * maximum age expire together with their descendants.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    public static final int DEFAULT_MAX_TRANSACTIONS = 100000;
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 14L * 24 * 60 * 60 * 1000;
+
+    /** A pooled transaction with the figures used to rank it */
+    private static class Entry {
+        final Transaction tx;
+        final double fee;
+        final int size;
+        final double feeRate;
+        final long sequence;
+        final long time;
+
+        Entry(Transaction tx, double fee, long sequence, long time) {
+            this.tx = tx;
+            this.fee = fee;
+            this.size = Math.max(1, tx.getRawTxSize());
+            this.feeRate = fee / size;
+            this.sequence = sequence;
+            this.time = time;
+        }
+    }
+
+    /** Highest fee rate first, then oldest first */
+    private static final Comparator<Entry> BY_FEE_RATE = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int c = Double.compare(e2.feeRate, e1.feeRate);
+            if (c != 0)
+                return c;
+            return Long.compare(e1.sequence, e2.sequence);
+        }
+    };
+
+    private final int maxTransactions;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    private LinkedHashMap<ByteArrayWrapper, Entry> H;  // in arrival order, oldest first
+    private TreeSet<Entry> byFeeRate;
+    private HashMap<UTXO, Entry> spentBy;
+    private long nextSequence;
+    private long totalBytes;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        this(DEFAULT_MAX_TRANSACTIONS, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * Create a pool holding at most {@code maxTransactions} transactions and {@code maxBytes} bytes
+     * of raw transactions, each kept for at most {@code maxAgeMillis} milliseconds
+     */
+    public TransactionPool(int maxTransactions, long maxBytes, long maxAgeMillis) {
+        if (maxTransactions < 0 || maxBytes < 0 || maxAgeMillis < 0)
+            throw new IllegalArgumentException("Pool limits must not be negative");
+        this.maxTransactions = maxTransactions;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        H = new LinkedHashMap<ByteArrayWrapper, Entry>();
+        byFeeRate = new TreeSet<Entry>(BY_FEE_RATE);
+        spentBy = new HashMap<UTXO, Entry>();
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        maxTransactions = txPool.maxTransactions;
+        maxBytes = txPool.maxBytes;
+        maxAgeMillis = txPool.maxAgeMillis;
+        H = new LinkedHashMap<ByteArrayWrapper, Entry>(txPool.H);
+        byFeeRate = new TreeSet<Entry>(txPool.byFeeRate);
+        spentBy = new HashMap<UTXO, Entry>(txPool.spentBy);
+        nextSequence = txPool.nextSequence;
+        totalBytes = txPool.totalBytes;
     }
 
+    /**
+     * Adds {@code tx} without validation; its fee is unknown and counted as zero, so it is dropped
+     * if it conflicts with a pool transaction
+     */
     public void addTransaction(Transaction tx) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (conflicts(tx).isEmpty()) {
+            insert(new Entry(tx, 0, nextSequence++, now));
+            trim();
+        }
+    }
+
+    /**
+     * Adds {@code tx} if it is valid on top of {@code utxoPool}, where inputs may also spend
+     * outputs of transactions already in this pool.
+     *
+     * If {@code tx} spends an outpoint that a pool transaction already spends, it replaces the
+     * conflicting transactions only if its fee is higher than theirs plus that of their
+     * descendants, which are all evicted; otherwise it is rejected.
+     *
+     * The budgets are enforced afterwards, which may evict {@code tx} itself.
+     *
+     * @return true if {@code tx} is in the pool afterwards
+     */
+    public boolean addTransaction(Transaction tx, UTXOPool utxoPool) {
+        if (tx == null || tx.getHash() == null)
+            return false;
+        long now = System.currentTimeMillis();
+        expire(now);
         ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        if (H.containsKey(hash))
+            return true;
+
+        // Outputs of pool transactions count as spendable for chained transactions
+        UTXOPool view = new UTXOPool(utxoPool);
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null)
+                return false;
+            Entry parent = H.get(new ByteArrayWrapper(in.prevTxHash));
+            if (parent != null && in.outputIndex >= 0 && in.outputIndex < parent.tx.numOutputs()) {
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                view.addUTXO(utxo, parent.tx.getOutput(in.outputIndex));
+            }
+        }
+
+        TxHandler handler = new TxHandler(view);
+        if (!handler.isValidTx(tx))
+            return false;
+        double fee = fee(tx, view);
+
+        LinkedHashSet<Entry> replaced = conflicts(tx);
+        if (!replaced.isEmpty()) {
+            double replacedFee = 0;
+            for (Entry e : replaced)
+                replacedFee += e.fee;
+            if (fee <= replacedFee)
+                return false;
+            // tx must not depend on what it evicts
+            for (Transaction.Input in : tx.getInputs()) {
+                Entry parent = H.get(new ByteArrayWrapper(in.prevTxHash));
+                if (parent != null && replaced.contains(parent))
+                    return false;
+            }
+            for (Entry e : replaced)
+                removeTransaction(e.tx.getHash());
+        }
+
+        insert(new Entry(tx, fee, nextSequence++, now));
+        trim();
+        return H.containsKey(hash);
+    }
+
+    /** Evicts the transactions that entered the pool more than the maximum age before {@code now} */
+    public void expire(long now) {
+        LinkedHashSet<Entry> expired = new LinkedHashSet<Entry>();
+        for (Entry entry : H.values()) {
+            if (now - entry.time <= maxAgeMillis)
+                break;
+            addWithDescendants(entry, expired);
+        }
+        for (Entry e : expired)
+            removeTransaction(e.tx.getHash());
+    }
+
+    /** Evicts the packages with the lowest descendant score until the pool is within budget */
+    private void trim() {
+        while (H.size() > maxTransactions || totalBytes > maxBytes) {
+            LinkedHashSet<Entry> victim = null;
+            double victimScore = Double.POSITIVE_INFINITY;
+            // A package scores at least its root's own fee rate, so once the own fee rate reaches
+            // the best package score found, no later root can beat it
+            Iterator<Entry> it = byFeeRate.descendingIterator();
+            while (it.hasNext()) {
+                Entry root = it.next();
+                if (root.feeRate >= victimScore)
+                    break;
+                LinkedHashSet<Entry> pkg = new LinkedHashSet<Entry>();
+                addWithDescendants(root, pkg);
+                double fee = 0;
+                long size = 0;
+                for (Entry e : pkg) {
+                    fee += e.fee;
+                    size += e.size;
+                }
+                double score = Math.max(root.feeRate, fee / size);
+                if (score < victimScore) {
+                    victim = pkg;
+                    victimScore = score;
+                }
+            }
+            for (Entry e : victim)
+                removeTransaction(e.tx.getHash());
+        }
     }
 
     public void removeTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Entry entry = H.remove(hash);
+        if (entry == null)
+            return;
+        totalBytes -= entry.size;
+        byFeeRate.remove(entry);
+        for (Transaction.Input in : entry.tx.getInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (spentBy.get(utxo) == entry)
+                spentBy.remove(utxo);
+        }
+    }
+
+    /**
+     * Drops the transactions confirmed by {@code block}, then every pool transaction that spends
+     * an outpoint the block spent, with its descendants.
+     */
+    public void blockConnected(Block block) {
+        ArrayList<Transaction> txs = block.getTransactions();
+        for (Transaction tx : txs)
+            removeTransaction(tx.getHash());
+
+        LinkedHashSet<Entry> evicted = new LinkedHashSet<Entry>();
+        for (Transaction tx : txs) {
+            for (Transaction.Input in : tx.getInputs()) {
+                Entry spender = spentBy.get(new UTXO(in.prevTxHash, in.outputIndex));
+                if (spender != null)
+                    addWithDescendants(spender, evicted);
+            }
+        }
+        for (Entry e : evicted)
+            removeTransaction(e.tx.getHash());
+    }
+
+    /**
+     * Puts the transactions of {@code block}, which left the main chain, back into the pool if
+     * they are valid on top of {@code utxoPool}, the UTXO set at the new tip. Pool transactions
+     * spending outputs that no longer exist, because the block transaction did not come back,
+     * are evicted with their descendants.
+     */
+    public void blockDisconnected(Block block, UTXOPool utxoPool) {
+        for (Transaction tx : block.getTransactions())
+            addTransaction(tx, utxoPool);
+
+        ArrayList<Transaction> txs = new ArrayList<Transaction>(block.getTransactions());
+        txs.add(block.getCoinbase());
+        LinkedHashSet<Entry> evicted = new LinkedHashSet<Entry>();
+        for (Transaction tx : txs) {
+            byte[] txHash = tx.getHash();
+            if (txHash == null || H.containsKey(new ByteArrayWrapper(txHash)))
+                continue;
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                UTXO utxo = new UTXO(txHash, i);
+                if (utxoPool.contains(utxo))
+                    continue;
+                Entry spender = spentBy.get(utxo);
+                if (spender != null)
+                    addWithDescendants(spender, evicted);
+            }
+        }
+        for (Entry e : evicted)
+            removeTransaction(e.tx.getHash());
     }
 
     public Transaction getTransaction(byte[] txHash) {
         ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Entry entry = H.get(hash);
+        return entry == null ? null : entry.tx;
+    }
+
+    /** @return the fee {@code tx} was admitted with, or -1 if it is not in the pool */
+    public double getFee(byte[] txHash) {
+        Entry entry = H.get(new ByteArrayWrapper(txHash));
+        return entry == null ? -1 : entry.fee;
+    }
+
+    /** @return the pool transaction spending {@code utxo}, or null */
+    public Transaction getSpendingTransaction(UTXO utxo) {
+        Entry entry = spentBy.get(utxo);
+        return entry == null ? null : entry.tx;
+    }
+
+    /** @return the number of transactions in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /** @return the combined raw size of the transactions in the pool */
+    public long getTotalBytes() {
+        return totalBytes;
     }
 
     public ArrayList<Transaction> getTransactions() {
-        return new ArrayList<Transaction>(H.values());
+        ArrayList<Transaction> txs = new ArrayList<Transaction>(H.size());
+        for (Entry entry : H.values())
+            txs.add(entry.tx);
+        return txs;
+    }
+
+    /**
+     * Picks up to {@code maxTxs} transactions that can go into a block on top of
+     * {@code utxoPool}, highest fee rate first. A transaction spending a pool transaction becomes
+     * a candidate once its parent is picked, so the result is in dependency order. Transactions
+     * whose inputs are gone or already claimed by a picked transaction are skipped.
+     */
+    public ArrayList<Transaction> selectTransactions(UTXOPool utxoPool, int maxTxs) {
+        ArrayList<Transaction> selected = new ArrayList<Transaction>();
+        IdentityHashMap<Entry, Boolean> done = new IdentityHashMap<Entry, Boolean>();
+        HashSet<UTXO> spent = new HashSet<UTXO>();
+        HashSet<UTXO> created = new HashSet<UTXO>();
+        PriorityQueue<Entry> unlocked = new PriorityQueue<Entry>(BY_FEE_RATE);
+
+        Iterator<Entry> it = byFeeRate.iterator();
+        Entry next = it.hasNext() ? it.next() : null;
+        while (selected.size() < maxTxs) {
+            Entry entry;
+            if (!unlocked.isEmpty() && (next == null || BY_FEE_RATE.compare(unlocked.peek(), next) < 0)) {
+                entry = unlocked.poll();
+            } else if (next != null) {
+                entry = next;
+                next = it.hasNext() ? it.next() : null;
+            } else {
+                break;
+            }
+            if (done.containsKey(entry))
+                continue;
+
+            int readiness = readiness(entry.tx, utxoPool, spent, created);
+            if (readiness == WAITING)
+                continue;  // revisited once the missing parent is picked
+            done.put(entry, Boolean.TRUE);
+            if (readiness == INVALID)
+                continue;
+
+            selected.add(entry.tx);
+            for (Transaction.Input in : entry.tx.getInputs())
+                spent.add(new UTXO(in.prevTxHash, in.outputIndex));
+            byte[] txHash = entry.tx.getHash();
+            for (int i = 0; i < entry.tx.numOutputs(); i++) {
+                UTXO utxo = new UTXO(txHash, i);
+                created.add(utxo);
+                Entry child = spentBy.get(utxo);
+                if (child != null && !done.containsKey(child))
+                    unlocked.add(child);
+            }
+        }
+        return selected;
+    }
+
+    private static final int READY = 0;
+    private static final int WAITING = 1;
+    private static final int INVALID = 2;
+
+    private int readiness(Transaction tx, UTXOPool utxoPool, HashSet<UTXO> spent, HashSet<UTXO> created) {
+        int readiness = READY;
+        for (Transaction.Input in : tx.getInputs()) {
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (spent.contains(utxo))
+                return INVALID;
+            if (utxoPool.contains(utxo) || created.contains(utxo))
+                continue;
+            if (H.containsKey(new ByteArrayWrapper(in.prevTxHash)))
+                readiness = WAITING;
+            else
+                return INVALID;
+        }
+        return readiness;
+    }
+
+    /** @return the pool transactions spending an input of {@code tx}, with their descendants */
+    private LinkedHashSet<Entry> conflicts(Transaction tx) {
+        LinkedHashSet<Entry> found = new LinkedHashSet<Entry>();
+        ByteArrayWrapper hash = tx.getHash() == null ? null : new ByteArrayWrapper(tx.getHash());
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            Entry spender = spentBy.get(new UTXO(in.prevTxHash, in.outputIndex));
+            // the same transaction again is not a conflict
+            if (spender != null && !new ByteArrayWrapper(spender.tx.getHash()).equals(hash))
+                addWithDescendants(spender, found);
+        }
+        return found;
+    }
+
+    /** Adds {@code entry} and every pool transaction that spends from it, directly or not */
+    private void addWithDescendants(Entry entry, LinkedHashSet<Entry> found) {
+        ArrayList<Entry> stack = new ArrayList<Entry>();
+        stack.add(entry);
+        while (!stack.isEmpty()) {
+            Entry e = stack.remove(stack.size() - 1);
+            if (!found.add(e))
+                continue;
+            byte[] txHash = e.tx.getHash();
+            for (int i = 0; i < e.tx.numOutputs(); i++) {
+                Entry child = spentBy.get(new UTXO(txHash, i));
+                if (child != null)
+                    stack.add(child);
+            }
+        }
+    }
+
+    private void insert(Entry entry) {
+        ByteArrayWrapper hash = new ByteArrayWrapper(entry.tx.getHash());
+        Entry old = H.get(hash);
+        if (old != null)
+            removeTransaction(entry.tx.getHash());
+        H.put(hash, entry);
+        totalBytes += entry.size;
+        byFeeRate.add(entry);
+        for (Transaction.Input in : entry.tx.getInputs()) {
+            if (in.prevTxHash != null)
+                spentBy.put(new UTXO(in.prevTxHash, in.outputIndex), entry);
+        }
+    }
+
+    /** @return sum of inputs minus sum of outputs, looked up in {@code utxoPool} */
+    private static double fee(Transaction tx, UTXOPool utxoPool) {
+        double fee = 0;
+        for (Transaction.Input in : tx.getInputs())
+            fee += utxoPool.getTxOutput(in.prevTxHash, in.outputIndex).value;
+        for (Transaction.Output out : tx.getOutputs())
+            fee -= out.value;
+        return fee;
     }
 }
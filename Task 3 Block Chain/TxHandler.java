@@ -1,16 +1,38 @@
 import java.security.PublicKey;
-import java.util.ArrayList;
-import java.util.HashSet;
 
 public class TxHandler {
 
     private UTXOPool utxoPool;
+    private SignatureVerifier verifier;
+    private SignatureCache signatureCache;
+
+    /** signatures checked up front by {@link #handleTxs}, null outside of it */
+    private SignatureVerifier.Batch verifiedBatch;
 
     /**
      * Creates a public ledger whose current UTXOPool is a defensive copy of utxoPool
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, SignatureVerifier.commonPool());
+    }
+
+    /**
+     * Creates a public ledger whose current UTXOPool is a defensive copy of utxoPool and whose
+     * batches are signature-checked by {@code verifier}
+     */
+    public TxHandler(UTXOPool utxoPool, SignatureVerifier verifier) {
+        this(utxoPool, verifier, SignatureCache.shared());
+    }
+
+    /**
+     * Creates a public ledger whose current UTXOPool is a defensive copy of utxoPool, whose
+     * batches are signature-checked by {@code verifier} and which remembers successful
+     * verifications in {@code signatureCache}
+     */
+    public TxHandler(UTXOPool utxoPool, SignatureVerifier verifier, SignatureCache signatureCache) {
         this.utxoPool = new UTXOPool(utxoPool);  // defensive copy
+        this.verifier = verifier;
+        this.signatureCache = signatureCache;
     }
 
     /**
@@ -25,31 +47,25 @@ public class TxHandler {
         double inputSum = 0;
         double outputSum = 0;
 
-        HashSet<UTXO> claimedUTXOs = new HashSet<>();
+        // (3) no UTXO is claimed multiple times
+        if (tx.hasDuplicateInputs()) {
+            return false;
+        }
 
         for (int i = 0; i < tx.numInputs(); i++) {
             Transaction.Input input = tx.getInput(i);
-            UTXO utxo = new UTXO(input.prevTxHash, input.outputIndex);
 
-            // (1) all outputs claimed are in the UTXO pool
-            if (!utxoPool.contains(utxo)) {
+            // (1) all outputs claimed are in the UTXO pool, looked up without building a UTXO
+            Transaction.Output prevTxOut = utxoPool.getTxOutput(input.prevTxHash, input.outputIndex);
+            if (prevTxOut == null) {
                 return false;
             }
 
-            Transaction.Output prevTxOut = utxoPool.getTxOutput(utxo);
-
             // (2) the signatures on each input of tx are valid
             PublicKey pubKey = prevTxOut.address;
-            byte[] message = tx.getRawDataToSign(i);
-            if (!Crypto.verifySignature(pubKey, message, input.signature)) {
-                return false;
-            }
-
-            // (3) no UTXO is claimed multiple times
-            if (claimedUTXOs.contains(utxo)) {
+            if (!isSignatureValid(tx, i, pubKey)) {
                 return false;
             }
-            claimedUTXOs.add(utxo);
 
             inputSum += prevTxOut.value;
         }
@@ -71,6 +87,17 @@ public class TxHandler {
         return true;
     }
 
+    /**
+     * Uses the result of the batch verification stage if it covers this input, and the
+     * signature cache otherwise
+     */
+    private boolean isSignatureValid(Transaction tx, int index, PublicKey pubKey) {
+        if (verifiedBatch != null && verifiedBatch.isVerified(tx, index, pubKey)) {
+            return true;
+        }
+        return signatureCache.verifySignature(tx, index, pubKey);
+    }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions,
      * checking each transaction for correctness,
@@ -78,26 +105,17 @@ public class TxHandler {
      * and updating the current UTXO pool accordingly.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
-        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
-        boolean progress = true;
-
-        // Repeat until no new transactions accepted in a pass
-        while (progress) {
-            progress = false;
-            for (Transaction tx : possibleTxs) {
-                if (tx == null) continue;
-                if (acceptedTxs.contains(tx)) continue;
-
-                if (isValidTx(tx)) {
-                    // Accept transaction
-                    acceptedTxs.add(tx);
-                    updateUTXOPool(tx);
-                    progress = true;
-                }
-            }
+        // Verify all signatures of the batch in parallel, transactions with a bad or
+        // unresolvable signature can never be accepted and are dropped here
+        verifiedBatch = verifier.verify(possibleTxs, utxoPool, signatureCache);
+        try {
+            Transaction[] verifiedTxs = verifiedBatch.filter(possibleTxs);
+
+            // Re-check a transaction only when one of its parents has just been accepted
+            return TxScheduler.schedule(verifiedTxs, this::isValidTx, this::updateUTXOPool);
+        } finally {
+            verifiedBatch = null;
         }
-
-        return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
     }
 
     /** Update the UTXO pool with the accepted transaction */
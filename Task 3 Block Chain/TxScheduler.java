@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Schedules the transactions of one epoch against a ledger using the parent -> child graph
+ * induced by {@code Input.prevTxHash}.
+ *
+ * The result is identical to repeatedly scanning {@code possibleTxs} in array order until a
+ * full pass accepts nothing, but a transaction is only re-checked when one of the transactions
+ * it spends from has just been accepted. A transaction that becomes ready because of a parent
+ * at a lower index is checked later in the same pass, one that becomes ready because of a
+ * parent at a higher index is checked in the next pass, exactly as the fixed-point loop would.
+ */
+public class TxScheduler {
+
+    /**
+     * Returns the transactions of {@code possibleTxs} accepted by {@code isValid}, in acceptance
+     * order. {@code apply} is called on every accepted transaction before the next check so that
+     * the ledger reflects the spent and created outputs.
+     */
+    public static Transaction[] schedule(Transaction[] possibleTxs, Predicate<Transaction> isValid,
+                                         Consumer<Transaction> apply) {
+        int n = possibleTxs.length;
+        HashMap<ByteArrayWrapper, ArrayList<Integer>> children = buildChildren(possibleTxs);
+
+        ArrayList<Transaction> acceptedTxs = new ArrayList<>();
+        HashSet<Transaction> accepted = new HashSet<>();
+
+        BitSet currentPass = new BitSet(n);
+        BitSet nextPass = new BitSet(n);
+        currentPass.set(0, n);
+
+        while (!currentPass.isEmpty()) {
+            for (int i = currentPass.nextSetBit(0); i >= 0; i = currentPass.nextSetBit(i + 1)) {
+                Transaction tx = possibleTxs[i];
+                if (tx == null) continue;
+                if (accepted.contains(tx)) continue;
+                if (!isValid.test(tx)) continue;
+
+                acceptedTxs.add(tx);
+                accepted.add(tx);
+                apply.accept(tx);
+
+                // Wake the transactions spending from tx at the point the next scan would reach them
+                if (tx.getHash() == null) continue;
+                ArrayList<Integer> waiting = children.get(new ByteArrayWrapper(tx.getHash()));
+                if (waiting == null) continue;
+                for (int child : waiting) {
+                    if (child > i)
+                        currentPass.set(child);
+                    else
+                        nextPass.set(child);
+                }
+            }
+
+            BitSet done = currentPass;
+            currentPass = nextPass;
+            nextPass = done;
+            nextPass.clear();
+        }
+
+        return acceptedTxs.toArray(new Transaction[acceptedTxs.size()]);
+    }
+
+    /** Maps each referenced transaction hash to the indices of the transactions spending from it */
+    private static HashMap<ByteArrayWrapper, ArrayList<Integer>> buildChildren(Transaction[] txs) {
+        HashMap<ByteArrayWrapper, ArrayList<Integer>> children = new HashMap<>();
+        for (int i = 0; i < txs.length; i++) {
+            if (txs[i] == null) continue;
+            for (Transaction.Input in : txs[i].getInputs()) {
+                if (in.prevTxHash == null) continue;
+                children.computeIfAbsent(new ByteArrayWrapper(in.prevTxHash), k -> new ArrayList<>()).add(i);
+            }
+        }
+        return children;
+    }
+}
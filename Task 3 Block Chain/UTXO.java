@@ -2,26 +2,69 @@ import java.util.Arrays;
 
 public class UTXO implements Comparable<UTXO> {
 
-    /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    /** Length of the transaction hashes kept inline, the size of a SHA-256 digest */
+    private static final int INLINE_HASH_LENGTH = 32;
+
+    /** Hash of the transaction from which this UTXO originates, as four big-endian longs */
+    private final long h0, h1, h2, h3;
+
+    /** Hash of the transaction if it is not {@code INLINE_HASH_LENGTH} bytes long, null otherwise */
+    private final byte[] otherHash;
 
     /** Index of the corresponding output in said transaction */
-    private int index;
+    private final int index;
+
+    /** Cached {@link #hashCode} */
+    private final int hash;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
      * hash is {@code txHash}
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        if (txHash.length == INLINE_HASH_LENGTH) {
+            h0 = readLong(txHash, 0);
+            h1 = readLong(txHash, 8);
+            h2 = readLong(txHash, 16);
+            h3 = readLong(txHash, 24);
+            otherHash = null;
+        } else {
+            h0 = h1 = h2 = h3 = 0;
+            otherHash = Arrays.copyOf(txHash, txHash.length);
+        }
         this.index = index;
+        this.hash = hashCode(txHash, index);
     }
 
-    /** @return the transaction hash of this UTXO */
+    /** @return a copy of the transaction hash of this UTXO */
     public byte[] getTxHash() {
+        if (otherHash != null)
+            return otherHash.clone();
+        byte[] txHash = new byte[INLINE_HASH_LENGTH];
+        writeLong(txHash, 0, h0);
+        writeLong(txHash, 8, h1);
+        writeLong(txHash, 16, h2);
+        writeLong(txHash, 24, h3);
         return txHash;
     }
 
+    /** @return the length in bytes of the transaction hash of this UTXO */
+    public int getTxHashLength() {
+        return otherHash != null ? otherHash.length : INLINE_HASH_LENGTH;
+    }
+
+    /** Writes the transaction hash of this UTXO into {@code dst} at {@code off}, without copying it first */
+    public void writeTxHash(byte[] dst, int off) {
+        if (otherHash != null) {
+            System.arraycopy(otherHash, 0, dst, off, otherHash.length);
+            return;
+        }
+        writeLong(dst, off, h0);
+        writeLong(dst, off + 8, h1);
+        writeLong(dst, off + 16, h2);
+        writeLong(dst, off + 24, h3);
+    }
+
     /** @return the index of this UTXO */
     public int getIndex() {
         return index;
@@ -40,21 +83,35 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
+        if (hash != utxo.hash || index != utxo.index)
             return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        if (otherHash != null || utxo.otherHash != null)
+            return Arrays.equals(otherHash, utxo.otherHash);
+        return h0 == utxo.h0 && h1 == utxo.h1 && h2 == utxo.h2 && h3 == utxo.h3;
+    }
+
+    /**
+     * @return true if this UTXO is the output with index {@code index} of the transaction whose
+     *         hash is {@code txHash}, without building a UTXO for it
+     */
+    public boolean matches(byte[] txHash, int index) {
+        if (txHash == null || this.index != index)
+            return false;
+        if (otherHash != null || txHash.length != INLINE_HASH_LENGTH)
+            return Arrays.equals(otherHash, txHash);
+        return h0 == readLong(txHash, 0) && h1 == readLong(txHash, 8)
+                && h2 == readLong(txHash, 16) && h3 == readLong(txHash, 24);
     }
 
     /**
      * Simple implementation of a UTXO hashCode that respects equality of UTXOs
      */
     public int hashCode() {
+        return hash;
+    }
+
+    /** @return the {@link #hashCode} of the UTXO {@code (txHash, index)}, without building it */
+    public static int hashCode(byte[] txHash, int index) {
         int hash = 1;
         hash = hash * 17 + index;
         hash = hash * 31 + Arrays.hashCode(txHash);
@@ -63,28 +120,60 @@ public class UTXO implements Comparable<UTXO> {
 
     /** Compares this UTXO to the one specified by {@code utxo} */
     public int compareTo(UTXO utxo) {
-        byte[] hash = utxo.txHash;
         int in = utxo.index;
         if (in > index)
             return -1;
         else if (in < index)
             return 1;
         else {
-            int len1 = txHash.length;
-            int len2 = hash.length;
+            int len1 = getTxHashLength();
+            int len2 = utxo.getTxHashLength();
             if (len2 > len1)
                 return -1;
             else if (len2 < len1)
                 return 1;
             else {
                 for (int i = 0; i < len1; i++) {
-                    if (hash[i] > txHash[i])
+                    byte mine = byteAt(i);
+                    byte theirs = utxo.byteAt(i);
+                    if (theirs > mine)
                         return -1;
-                    else if (hash[i] < txHash[i])
+                    else if (theirs < mine)
                         return 1;
                 }
                 return 0;
             }
         }
     }
+
+    /** @return true if the transaction hash is kept inline as four longs */
+    boolean hasInlineHash() {
+        return otherHash == null;
+    }
+
+    /** @return long {@code i} (0 to 3) of an inline transaction hash */
+    long hashWord(int i) {
+        return i == 0 ? h0 : i == 1 ? h1 : i == 2 ? h2 : h3;
+    }
+
+    private byte byteAt(int i) {
+        if (otherHash != null)
+            return otherHash[i];
+        long word = i < 8 ? h0 : i < 16 ? h1 : i < 24 ? h2 : h3;
+        return (byte) (word >>> (56 - 8 * (i & 7)));
+    }
+
+    private static long readLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (b[off + i] & 0xff);
+        return v;
+    }
+
+    private static void writeLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
 }
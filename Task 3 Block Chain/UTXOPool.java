@@ -1,53 +1,117 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.function.BiConsumer;
 
 public class UTXOPool {
 
+    /** Marks a snapshot UTXO as spent in {@code H} */
+    private static final Transaction.Output REMOVED = new Transaction().new Output(0, null);
+
     /**
-     * The current collection of UTXOs, with each one mapped to its corresponding transaction output
+     * The current collection of UTXOs, with each one mapped to its corresponding transaction output.
+     * The trie is persistent, so copies of a pool share it and only diverge along updated paths.
+     * On top of a snapshot it only holds the changes since the snapshot, removals included.
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOTrie H;
+
+    /** UTXOs read from disk on demand, under the ones in {@code H}; null for an in-memory pool */
+    private UTXOSnapshot base;
+
+    /** Number of UTXOs in the pool, kept only when there is a snapshot */
+    private int size;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = UTXOTrie.EMPTY;
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /** Creates a new UTXOPool that is a copy of {@code uPool}, in constant time */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H;
+        base = uPool.base;
+        size = uPool.size;
+    }
+
+    /** Creates a new UTXOPool holding the UTXOs of {@code snapshot}, which are read on demand */
+    public UTXOPool(UTXOSnapshot snapshot) {
+        H = UTXOTrie.EMPTY;
+        base = snapshot;
+        size = snapshot.size();
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        if (base != null && getTxOutput(utxo) == null)
+            size++;
+        H = H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        if (base == null) {
+            H = H.remove(utxo);
+            return;
+        }
+        if (getTxOutput(utxo) == null)
+            return;
+        size--;
+        H = base.get(utxo) != null ? H.put(utxo, REMOVED) : H.remove(utxo);
     }
 
     /**
      * @return the transaction output corresponding to UTXO {@code utxo}, or null if {@code utxo} is not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
-        return H.get(ut);
+        Transaction.Output txOut = H.get(ut);
+        if (base == null || txOut != null)
+            return txOut == REMOVED ? null : txOut;
+        return base.get(ut);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return getTxOutput(utxo) != null;
+    }
+
+    /**
+     * @return the output with index {@code index} of the transaction whose hash is {@code txHash},
+     *         or null if it is not in the pool. Unlike {@link #getTxOutput(UTXO)}, no UTXO is built.
+     */
+    public Transaction.Output getTxOutput(byte[] txHash, int index) {
+        Transaction.Output txOut = H.get(txHash, index);
+        if (base == null || txOut != null)
+            return txOut == REMOVED ? null : txOut;
+        return base.get(txHash, index);
+    }
+
+    /** @return true if the UTXO {@code (txHash, index)} is in the pool, without building it */
+    public boolean contains(byte[] txHash, int index) {
+        return getTxOutput(txHash, index) != null;
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return base == null ? H.size() : size;
+    }
+
+    /** Calls {@code action} on every UTXO in the pool and its output, in no particular order */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        if (base != null) {
+            UTXOTrie changes = H;
+            base.forEach((utxo, txOut) -> {
+                if (changes.get(utxo) == null)
+                    action.accept(utxo, txOut);
+            });
+        }
+        H.forEach((utxo, txOut) -> {
+            if (txOut != REMOVED)
+                action.accept(utxo, txOut);
+        });
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
-        return allUTXO;
+        ArrayList<UTXO> utxos = new ArrayList<UTXO>(size());
+        forEach((utxo, txOut) -> utxos.add(utxo));
+        return utxos;
     }
 }
@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * Read-only UTXO set stored in a file as an open-addressing hash table and memory-mapped, so that
+ * opening it costs the same whatever its size and lookups only page in the slots they probe.
+ *
+ * Layout, big-endian: a fixed header; {@code capacity} slots of {@link #SLOT_BYTES} (the 32-byte
+ * transaction hash, the output index, the key id plus one or 0 for an empty slot, and the value);
+ * a table of offsets of the distinct public keys followed by their X.509 encodings; and the few
+ * UTXOs whose transaction hash is not 32 bytes long, which are loaded into memory on open.
+ *
+ * An output is decoded the first time its slot is read and kept, so every lookup of a UTXO returns
+ * the same object, as a pool held in memory does. The decoded outputs are kept in pages of
+ * {@link #PAGE_SLOTS} slots, allocated as slots in them are read.
+ */
+public class UTXOSnapshot {
+
+    private static final int MAGIC = 0x55545853;  // "UTXS"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 256;
+    private static final int MAX_TIP_HASH_BYTES = 64;
+    private static final int HASH_BYTES = 32;
+    private static final int SLOT_BYTES = 48;
+
+    /** Slots per mapped region, keeping each region well below the 2 GiB limit of a buffer */
+    private static final int CHUNK_SHIFT = 22;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+
+    /** Slots per page of decoded outputs */
+    private static final int PAGE_SHIFT = 10;
+    private static final int PAGE_SLOTS = 1 << PAGE_SHIFT;
+
+    /** Outputs are inner objects of Transaction, this one owns the decoded ones */
+    private static final Transaction OUTPUT_OWNER = new Transaction();
+
+    private final long generation;
+    private final byte[] tipHash;
+    private final int tipHeight;
+    private final int size;
+    private final int mask;
+    private final MappedByteBuffer[] chunks;
+    private final MappedByteBuffer keyData;
+    private final int keyCount;
+    private final PublicKey[] keys;  // decoded on first use
+    private final AtomicReferenceArray<AtomicReferenceArray<Transaction.Output>> pages;
+    private final HashMap<UTXO, Transaction.Output> overflow;
+
+    private UTXOSnapshot(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            throw new IOException("not a UTXO snapshot");
+        generation = header.getLong();
+        tipHeight = header.getInt();
+        tipHash = new byte[header.getInt()];
+        header.get(tipHash);
+        header.position(24 + MAX_TIP_HASH_BYTES);
+        long inlineCount = header.getLong();
+        int capacity = header.getInt();
+        keyCount = header.getInt();
+        long keysOffset = header.getLong();
+        long overflowOffset = header.getLong();
+        int overflowCount = header.getInt();
+        long fileSize = header.getLong();
+        if (fileSize != channel.size() || Integer.bitCount(capacity) != 1)
+            throw new IOException("truncated or corrupt UTXO snapshot");
+
+        mask = capacity - 1;
+        chunks = new MappedByteBuffer[(capacity + CHUNK_SLOTS - 1) >>> CHUNK_SHIFT];
+        for (int i = 0; i < chunks.length; i++) {
+            long slots = Math.min(CHUNK_SLOTS, capacity - (long) i * CHUNK_SLOTS);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES + (long) i * CHUNK_SLOTS * SLOT_BYTES, slots * SLOT_BYTES);
+        }
+        keyData = channel.map(FileChannel.MapMode.READ_ONLY, keysOffset, overflowOffset - keysOffset);
+        keys = new PublicKey[keyCount];
+        pages = new AtomicReferenceArray<>(Math.max(1, capacity >>> PAGE_SHIFT));
+
+        ByteBuffer rest = ByteBuffer.allocate((int) (fileSize - overflowOffset));
+        readFully(channel, rest, overflowOffset);
+        rest.flip();
+        overflow = new HashMap<>();
+        for (int i = 0; i < overflowCount; i++) {
+            byte[] txHash = new byte[rest.getInt()];
+            rest.get(txHash);
+            int index = rest.getInt();
+            int keyId = rest.getInt();
+            double value = rest.getDouble();
+            overflow.put(new UTXO(txHash, index), OUTPUT_OWNER.new Output(value, key(keyId)));
+        }
+        size = (int) inlineCount + overflowCount;
+    }
+
+    /** @return the snapshot in {@code file}, mapped into memory */
+    public static UTXOSnapshot open(Path file) throws IOException {
+        // The mappings stay valid once the channel is closed
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new UTXOSnapshot(channel);
+        }
+    }
+
+    /**
+     * Writes the UTXOs of {@code pool} to {@code file} as a snapshot of the chain at the block
+     * {@code tipHash}, at height {@code tipHeight}, and forces it to the device.
+     */
+    public static void write(Path file, UTXOPool pool, long generation, byte[] tipHash, int tipHeight)
+            throws IOException {
+        if (tipHash.length > MAX_TIP_HASH_BYTES)
+            throw new IllegalArgumentException("tip hash longer than " + MAX_TIP_HASH_BYTES + " bytes");
+        int capacity = 16;
+        while (capacity * 3L / 4 < pool.size())
+            capacity <<= 1;
+        int mask = capacity - 1;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer[] chunks = new MappedByteBuffer[(capacity + CHUNK_SLOTS - 1) >>> CHUNK_SHIFT];
+            for (int i = 0; i < chunks.length; i++) {
+                long slots = Math.min(CHUNK_SLOTS, capacity - (long) i * CHUNK_SLOTS);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        HEADER_BYTES + (long) i * CHUNK_SLOTS * SLOT_BYTES, slots * SLOT_BYTES);
+            }
+
+            HashMap<PublicKey, Integer> keyIds = new HashMap<>();
+            ArrayList<byte[]> encodedKeys = new ArrayList<>();
+            ArrayList<UTXO> overflowUTXOs = new ArrayList<>();
+            ArrayList<Transaction.Output> overflowOutputs = new ArrayList<>();
+            long[] inlineCount = new long[1];
+            byte[] txHash = new byte[HASH_BYTES];
+            pool.forEach((utxo, txOut) -> {
+                Integer keyId = keyIds.get(txOut.address);
+                if (keyId == null) {
+                    keyId = encodedKeys.size();
+                    keyIds.put(txOut.address, keyId);
+                    encodedKeys.add(txOut.address.getEncoded());
+                }
+                if (utxo.getTxHashLength() != HASH_BYTES) {
+                    overflowUTXOs.add(utxo);
+                    overflowOutputs.add(txOut);
+                    return;
+                }
+                int slot = spread(utxo.hashCode()) & mask;
+                while (chunks[slot >>> CHUNK_SHIFT].getInt(offset(slot) + HASH_BYTES + 4) != 0)
+                    slot = (slot + 1) & mask;
+                MappedByteBuffer chunk = chunks[slot >>> CHUNK_SHIFT];
+                int off = offset(slot);
+                utxo.writeTxHash(txHash, 0);
+                chunk.put(off, txHash);
+                chunk.putInt(off + HASH_BYTES, utxo.getIndex());
+                chunk.putInt(off + HASH_BYTES + 4, keyId + 1);
+                chunk.putDouble(off + HASH_BYTES + 8, txOut.value);
+                inlineCount[0]++;
+            });
+            for (MappedByteBuffer chunk : chunks)
+                chunk.force();
+
+            // Key offset table, then the keys, then the overflow UTXOs
+            long keysOffset = HEADER_BYTES + (long) capacity * SLOT_BYTES;
+            long keyBytes = 8L * encodedKeys.size();
+            for (byte[] k : encodedKeys)
+                keyBytes += 4 + k.length;
+            ByteBuffer tail = ByteBuffer.allocate(Math.toIntExact(keyBytes));
+            long keyOffset = 8L * encodedKeys.size();
+            for (byte[] k : encodedKeys) {
+                tail.putLong(keyOffset);
+                keyOffset += 4 + k.length;
+            }
+            for (byte[] k : encodedKeys) {
+                tail.putInt(k.length);
+                tail.put(k);
+            }
+            tail.flip();
+            writeFully(channel, tail, keysOffset);
+
+            long overflowOffset = keysOffset + keyBytes;
+            int overflowBytes = 0;
+            for (UTXO utxo : overflowUTXOs)
+                overflowBytes += 4 + utxo.getTxHashLength() + 16;
+            ByteBuffer overflow = ByteBuffer.allocate(overflowBytes);
+            for (int i = 0; i < overflowUTXOs.size(); i++) {
+                byte[] otherHash = overflowUTXOs.get(i).getTxHash();
+                overflow.putInt(otherHash.length);
+                overflow.put(otherHash);
+                overflow.putInt(overflowUTXOs.get(i).getIndex());
+                overflow.putInt(keyIds.get(overflowOutputs.get(i).address));
+                overflow.putDouble(overflowOutputs.get(i).value);
+            }
+            overflow.flip();
+            writeFully(channel, overflow, overflowOffset);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(tipHeight);
+            header.putInt(tipHash.length).put(tipHash);
+            header.position(24 + MAX_TIP_HASH_BYTES);
+            header.putLong(inlineCount[0]).putInt(capacity).putInt(encodedKeys.size());
+            header.putLong(keysOffset).putLong(overflowOffset).putInt(overflowUTXOs.size());
+            header.putLong(overflowOffset + overflowBytes);
+            header.clear();
+            writeFully(channel, header, 0);
+            channel.force(true);
+        }
+    }
+
+    /** @return the number of the compaction that wrote this snapshot */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /** @return the hash of the block this snapshot is the UTXO set after */
+    public byte[] getTipHash() {
+        return tipHash.clone();
+    }
+
+    /** @return the height of the block this snapshot is the UTXO set after */
+    public int getTipHeight() {
+        return tipHeight;
+    }
+
+    /** @return the number of UTXOs in the snapshot */
+    public int size() {
+        return size;
+    }
+
+    /** @return the output of {@code utxo}, or null if it is not in the snapshot */
+    public Transaction.Output get(UTXO utxo) {
+        if (!utxo.hasInlineHash())
+            return overflow.get(utxo);
+        return find(utxo.hashWord(0), utxo.hashWord(1), utxo.hashWord(2), utxo.hashWord(3),
+                utxo.getIndex(), utxo.hashCode());
+    }
+
+    /** @return the output of the UTXO {@code (txHash, index)}, or null, without building it */
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (txHash == null)
+            return null;
+        if (txHash.length != HASH_BYTES)
+            return overflow.isEmpty() ? null : overflow.get(new UTXO(txHash, index));
+        ByteBuffer wanted = ByteBuffer.wrap(txHash);
+        return find(wanted.getLong(0), wanted.getLong(8), wanted.getLong(16), wanted.getLong(24),
+                index, UTXO.hashCode(txHash, index));
+    }
+
+    /** @return the output of the UTXO whose 32-byte transaction hash is the longs {@code w0} to {@code w3}, or null */
+    private Transaction.Output find(long w0, long w1, long w2, long w3, int index, int hash) {
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            MappedByteBuffer chunk = chunks[slot >>> CHUNK_SHIFT];
+            int off = offset(slot);
+            int keyId = chunk.getInt(off + HASH_BYTES + 4);
+            if (keyId == 0)
+                return null;
+            if (chunk.getInt(off + HASH_BYTES) == index && chunk.getLong(off) == w0
+                    && chunk.getLong(off + 8) == w1 && chunk.getLong(off + 16) == w2
+                    && chunk.getLong(off + 24) == w3)
+                return output(slot, chunk, off, keyId);
+        }
+    }
+
+    /** Calls {@code action} on every UTXO in the snapshot and its output, in no particular order */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        byte[] txHash = new byte[HASH_BYTES];
+        for (int slot = 0; slot <= mask; slot++) {
+            MappedByteBuffer chunk = chunks[slot >>> CHUNK_SHIFT];
+            int off = offset(slot);
+            int keyId = chunk.getInt(off + HASH_BYTES + 4);
+            if (keyId == 0)
+                continue;
+            chunk.get(off, txHash);
+            action.accept(new UTXO(txHash, chunk.getInt(off + HASH_BYTES)), output(slot, chunk, off, keyId));
+        }
+        overflow.forEach(action);
+    }
+
+    /** @return the output in {@code slot}, at {@code off} in {@code chunk}, decoded once */
+    private Transaction.Output output(int slot, MappedByteBuffer chunk, int off, int keyId) {
+        AtomicReferenceArray<Transaction.Output> page = pages.get(slot >>> PAGE_SHIFT);
+        if (page == null) {
+            pages.compareAndSet(slot >>> PAGE_SHIFT, null, new AtomicReferenceArray<>(PAGE_SLOTS));
+            page = pages.get(slot >>> PAGE_SHIFT);
+        }
+        int i = slot & (PAGE_SLOTS - 1);
+        Transaction.Output txOut = page.get(i);
+        if (txOut == null) {
+            txOut = OUTPUT_OWNER.new Output(chunk.getDouble(off + HASH_BYTES + 8), key(keyId - 1));
+            // Racing threads keep whichever output was stored first
+            if (!page.compareAndSet(i, null, txOut))
+                txOut = page.get(i);
+        }
+        return txOut;
+    }
+
+    private PublicKey key(int id) {
+        PublicKey key = keys[id];
+        if (key == null) {
+            int off = Math.toIntExact(keyData.getLong(8 * id));
+            byte[] encoded = new byte[keyData.getInt(off)];
+            keyData.get(off + 4, encoded);
+            try {
+                key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("corrupt public key in UTXO snapshot", e);
+            }
+            // Decoding is deterministic, so racing threads at worst decode the same key twice
+            keys[id] = key;
+        }
+        return key;
+    }
+
+    private static int offset(int slot) {
+        return (slot & (CHUNK_SLOTS - 1)) * SLOT_BYTES;
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw new IOException("truncated UTXO snapshot");
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
+    }
+}
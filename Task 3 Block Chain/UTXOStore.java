@@ -0,0 +1,287 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Disk-backed UTXO set in a directory: a memory-mapped {@link UTXOSnapshot} of the set at some
+ * block plus an append-only log of the UTXO changes of every tip committed since. Opening the
+ * store maps the snapshot and replays only the log, so restarting does not depend on the length
+ * of the chain, and UTXOs the snapshot holds stay on disk until they are looked up.
+ *
+ * Each {@link #commit} appends the new outputs of the touched UTXOs and a commit record carrying
+ * the tip and a CRC32 of the changes; a torn or corrupt tail is cut off at the last good commit
+ * when the store is opened. Once the log outgrows half the snapshot (and at least the configured
+ * minimum), the current set is written to a new snapshot and the log starts over.
+ */
+public class UTXOStore implements Closeable {
+
+    public static final long DEFAULT_COMPACT_LOG_BYTES = 8L << 20;
+
+    /** Upper bound on the log, which is mapped as a single buffer when it is replayed */
+    private static final long MAX_LOG_BYTES = 1L << 30;
+
+    private static final String SNAPSHOT_FILE = "utxo.snapshot";
+    private static final String LOG_FILE = "utxo.log";
+    private static final int LOG_MAGIC = 0x5554584C;  // "UTXL"
+    private static final int LOG_HEADER_BYTES = 12;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte COMMIT = 3;
+
+    /** Outputs are inner objects of Transaction, this one owns the decoded ones */
+    private static final Transaction OUTPUT_OWNER = new Transaction();
+
+    private final Path dir;
+    private final long compactLogBytes;
+    private UTXOSnapshot snapshot;  // null until the first compaction
+    private FileChannel log;
+    private long logSize;
+    private UTXOPool pool;
+    private byte[] tipHash;  // null while nothing is committed
+    private int tipHeight;
+
+    private UTXOStore(Path dir, long compactLogBytes) {
+        this.dir = dir;
+        this.compactLogBytes = compactLogBytes;
+    }
+
+    /** Opens the store in {@code dir}, creating it if needed */
+    public static UTXOStore open(Path dir) throws IOException {
+        return open(dir, DEFAULT_COMPACT_LOG_BYTES);
+    }
+
+    /**
+     * Opens the store in {@code dir}, creating it if needed, compacting the log once it holds at
+     * least {@code compactLogBytes} bytes and half as much as the snapshot.
+     */
+    public static UTXOStore open(Path dir, long compactLogBytes) throws IOException {
+        if (compactLogBytes < 0)
+            throw new IllegalArgumentException("compactLogBytes must not be negative");
+        Files.createDirectories(dir);
+        UTXOStore store = new UTXOStore(dir, compactLogBytes);
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            store.snapshot = UTXOSnapshot.open(snapshotFile);
+            store.pool = new UTXOPool(store.snapshot);
+            store.tipHash = store.snapshot.getTipHash();
+            store.tipHeight = store.snapshot.getTipHeight();
+        } else {
+            store.pool = new UTXOPool();
+        }
+        store.openLog();
+        return store;
+    }
+
+    /** @return true if nothing was ever committed to the store */
+    public boolean isEmpty() {
+        return tipHash == null;
+    }
+
+    /** @return the hash of the block last committed, or null if the store is empty */
+    public byte[] getTipHash() {
+        return tipHash == null ? null : tipHash.clone();
+    }
+
+    /** @return the height of the block last committed */
+    public int getTipHeight() {
+        return tipHeight;
+    }
+
+    /** @return the UTXO set at the block last committed */
+    public UTXOPool getUTXOPool() {
+        return new UTXOPool(pool);
+    }
+
+    /** @return the number of bytes in the log */
+    public long getLogSize() {
+        return logSize;
+    }
+
+    /**
+     * Makes {@code utxoPool}, at the block {@code tipHash} of height {@code tipHeight}, the
+     * committed UTXO set. {@code touched} must hold every UTXO whose output differs from the set
+     * committed before; their outputs in {@code utxoPool} are logged and forced to the device.
+     */
+    public void commit(Collection<UTXO> touched, UTXOPool utxoPool, byte[] tipHash, int tipHeight)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] txHash = new byte[32];
+        for (UTXO utxo : touched) {
+            Transaction.Output txOut = utxoPool.getTxOutput(utxo);
+            out.writeByte(txOut == null ? REMOVE : PUT);
+            int txHashLength = utxo.getTxHashLength();
+            if (txHashLength > txHash.length)
+                txHash = new byte[txHashLength];
+            utxo.writeTxHash(txHash, 0);
+            out.writeInt(txHashLength);
+            out.write(txHash, 0, txHashLength);
+            out.writeInt(utxo.getIndex());
+            if (txOut != null) {
+                byte[] key = txOut.address.getEncoded();
+                out.writeDouble(txOut.value);
+                out.writeInt(key.length);
+                out.write(key);
+            }
+        }
+        out.writeByte(COMMIT);
+        out.writeInt(tipHeight);
+        out.writeInt(tipHash.length);
+        out.write(tipHash);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        while (record.hasRemaining())
+            logSize += log.write(record, logSize);
+        log.force(false);
+
+        pool = new UTXOPool(utxoPool);
+        this.tipHash = tipHash.clone();
+        this.tipHeight = tipHeight;
+        long snapshotBytes = snapshot == null ? 0 : Files.size(dir.resolve(SNAPSHOT_FILE));
+        if (logSize >= Math.min(MAX_LOG_BYTES, Math.max(compactLogBytes, snapshotBytes / 2)))
+            compact();
+    }
+
+    /**
+     * Writes the committed UTXO set to a new snapshot and empties the log. Pools handed out
+     * earlier keep reading the previous snapshot, which stays mapped until they are collected.
+     */
+    public void compact() throws IOException {
+        if (tipHash == null)
+            return;
+        long generation = snapshot == null ? 1 : snapshot.getGeneration() + 1;
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        UTXOSnapshot.write(tmp, pool, generation, tipHash, tipHeight);
+        Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        snapshot = UTXOSnapshot.open(snapshotFile);
+        pool = new UTXOPool(snapshot);
+
+        // A log of an older generation is ignored on open, so a crash before this point is safe
+        log.close();
+        Path logFile = dir.resolve(LOG_FILE);
+        Path logTmp = dir.resolve(LOG_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(logTmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeLogHeader(channel, generation);
+        }
+        Files.move(logTmp, logFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logSize = LOG_HEADER_BYTES;
+    }
+
+    /** Closes the log; pools read from the store remain usable */
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    /** Opens the log, replaying its committed changes into {@link #pool} and cutting off the rest */
+    private void openLog() throws IOException {
+        long generation = snapshot == null ? 0 : snapshot.getGeneration();
+        log = FileChannel.open(dir.resolve(LOG_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = log.size();
+        if (size > MAX_LOG_BYTES)
+            throw new IOException("UTXO log larger than " + MAX_LOG_BYTES + " bytes");
+        MappedByteBuffer buf = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (size < LOG_HEADER_BYTES || buf.getInt(0) != LOG_MAGIC || buf.getLong(4) != generation) {
+            // New store, or a log left over from before the last compaction
+            log.truncate(0);
+            writeLogHeader(log, generation);
+            logSize = LOG_HEADER_BYTES;
+            return;
+        }
+
+        HashMap<ByteArrayWrapper, PublicKey> keys = new HashMap<>();
+        ArrayList<UTXO> utxos = new ArrayList<>();
+        ArrayList<Transaction.Output> outputs = new ArrayList<>();
+        long committed = LOG_HEADER_BYTES;
+        buf.position(LOG_HEADER_BYTES);
+        try {
+            while (buf.hasRemaining()) {
+                byte type = buf.get();
+                if (type == COMMIT) {
+                    int height = buf.getInt();
+                    byte[] hash = readBytes(buf);
+                    CRC32 crc = new CRC32();
+                    crc.update(buf.duplicate().position((int) committed).limit(buf.position()));
+                    if (buf.getInt() != (int) crc.getValue())
+                        break;
+                    for (int i = 0; i < utxos.size(); i++) {
+                        if (outputs.get(i) == null)
+                            pool.removeUTXO(utxos.get(i));
+                        else
+                            pool.addUTXO(utxos.get(i), outputs.get(i));
+                    }
+                    utxos.clear();
+                    outputs.clear();
+                    tipHash = hash;
+                    tipHeight = height;
+                    committed = buf.position();
+                } else if (type == PUT || type == REMOVE) {
+                    byte[] txHash = readBytes(buf);
+                    utxos.add(new UTXO(txHash, buf.getInt()));
+                    if (type == REMOVE) {
+                        outputs.add(null);
+                        continue;
+                    }
+                    double value = buf.getDouble();
+                    byte[] encoded = readBytes(buf);
+                    PublicKey key = keys.get(new ByteArrayWrapper(encoded));
+                    if (key == null) {
+                        key = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+                        keys.put(new ByteArrayWrapper(encoded), key);
+                    }
+                    outputs.add(OUTPUT_OWNER.new Output(value, key));
+                } else {
+                    break;
+                }
+            }
+        } catch (RuntimeException | GeneralSecurityException e) {
+            // A record cut short by a crash, or garbage after it
+        }
+        log.truncate(committed);
+        logSize = committed;
+    }
+
+    /** Reads a length-prefixed byte array, failing on a length the buffer cannot hold */
+    private static byte[] readBytes(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static void writeLogHeader(FileChannel channel, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+        header.putInt(LOG_MAGIC).putLong(generation).flip();
+        while (header.hasRemaining())
+            channel.write(header, header.position());
+        channel.force(false);
+    }
+}
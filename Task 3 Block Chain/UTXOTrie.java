@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * Persistent (immutable) hash array mapped trie from {@link UTXO} to {@link Transaction.Output}.
+ *
+ * {@link #put} and {@link #remove} return a new trie that shares every node except the ones on
+ * the path to the changed key, so copying a trie is free and an update costs O(log32 n) small
+ * node copies. Each level consumes 5 bits of the key's hash; keys whose 32-bit hashes collide
+ * completely end up in a collision node.
+ */
+public class UTXOTrie {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    public static final UTXOTrie EMPTY = new UTXOTrie(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private UTXOTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /** @return the number of UTXOs in the trie */
+    public int size() {
+        return size;
+    }
+
+    /** @return the output mapped to {@code utxo}, or null */
+    public Transaction.Output get(UTXO utxo) {
+        Entry e = find(utxo);
+        return e == null ? null : e.value;
+    }
+
+    /** @return true if {@code utxo} is in the trie */
+    public boolean containsKey(UTXO utxo) {
+        return find(utxo) != null;
+    }
+
+    /** @return the output mapped to the UTXO {@code (txHash, index)}, or null, without building it */
+    public Transaction.Output get(byte[] txHash, int index) {
+        if (root == null || txHash == null)
+            return null;
+        Entry e = root.find(null, txHash, index, spread(UTXO.hashCode(txHash, index)), 0);
+        return e == null ? null : e.value;
+    }
+
+    private Entry find(UTXO utxo) {
+        if (root == null)
+            return null;
+        return root.find(utxo, null, 0, hash(utxo), 0);
+    }
+
+    /** @return a trie that also maps {@code utxo} to {@code txOut} */
+    public UTXOTrie put(UTXO utxo, Transaction.Output txOut) {
+        Entry entry = new Entry(utxo, hash(utxo), txOut);
+        if (root == null)
+            return new UTXOTrie(new BitmapNode(0, new Object[0]).put(entry, 0), 1);
+        Node newRoot = root.put(entry, 0);
+        if (newRoot == root)
+            return this;
+        return new UTXOTrie(newRoot, root.find(utxo, null, 0, entry.hash, 0) == null ? size + 1 : size);
+    }
+
+    /** @return a trie without {@code utxo} */
+    public UTXOTrie remove(UTXO utxo) {
+        if (root == null)
+            return this;
+        Node newRoot = root.remove(utxo, hash(utxo), 0);
+        if (newRoot == root)
+            return this;
+        return newRoot == null ? EMPTY : new UTXOTrie(newRoot, size - 1);
+    }
+
+    /** @return all UTXOs in the trie, in no particular order */
+    public ArrayList<UTXO> keys() {
+        ArrayList<UTXO> keys = new ArrayList<UTXO>(size);
+        forEach((utxo, txOut) -> keys.add(utxo));
+        return keys;
+    }
+
+    /** Calls {@code action} on every UTXO in the trie and its output, in no particular order */
+    public void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+        if (root != null)
+            root.forEach(action);
+    }
+
+    private static int hash(UTXO utxo) {
+        return spread(utxo.hashCode());
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /** Matches {@code e} against {@code key}, or against {@code (txHash, index)} if key is null */
+    private static boolean matches(Entry e, UTXO key, byte[] txHash, int index) {
+        return key != null ? e.key.equals(key) : e.key.matches(txHash, index);
+    }
+
+    private static class Entry {
+        final UTXO key;
+        final int hash;
+        final Transaction.Output value;
+
+        Entry(UTXO key, int hash, Transaction.Output value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private static abstract class Node {
+        abstract Entry find(UTXO key, byte[] txHash, int index, int hash, int shift);
+
+        /** @return the updated node, or this if nothing changed */
+        abstract Node put(Entry entry, int shift);
+
+        /** @return the updated node, null if it became empty, or this if key was absent */
+        abstract Node remove(UTXO key, int hash, int shift);
+
+        /** @return the only entry of this node if it holds exactly one entry and no children */
+        abstract Entry singleEntry();
+
+        abstract void forEach(BiConsumer<UTXO, Transaction.Output> action);
+    }
+
+    /** Up to 32 slots, each an {@link Entry} or a child {@link Node}, indexed by a bitmap */
+    private static class BitmapNode extends Node {
+        private final int bitmap;
+        private final Object[] slots;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        @Override
+        Entry find(UTXO key, byte[] txHash, int index, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return null;
+            Object slot = slots[Integer.bitCount(bitmap & (bit - 1))];
+            if (slot instanceof Entry) {
+                Entry e = (Entry) slot;
+                return matches(e, key, txHash, index) ? e : null;
+            }
+            return ((Node) slot).find(key, txHash, index, hash, shift + BITS);
+        }
+
+        @Override
+        Node put(Entry entry, int shift) {
+            int bit = 1 << ((entry.hash >>> shift) & MASK);
+            int idx = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, idx);
+                newSlots[idx] = entry;
+                System.arraycopy(slots, idx, newSlots, idx + 1, slots.length - idx);
+                return new BitmapNode(bitmap | bit, newSlots);
+            }
+
+            Object slot = slots[idx];
+            Object newSlot;
+            if (slot instanceof Entry) {
+                Entry e = (Entry) slot;
+                if (e.key.equals(entry.key)) {
+                    if (e.value == entry.value)
+                        return this;
+                    newSlot = entry;
+                } else {
+                    newSlot = merge(e, entry, shift + BITS);
+                }
+            } else {
+                Node child = (Node) slot;
+                newSlot = child.put(entry, shift + BITS);
+                if (newSlot == child)
+                    return this;
+            }
+            return withSlot(idx, newSlot);
+        }
+
+        @Override
+        Node remove(UTXO key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = Integer.bitCount(bitmap & (bit - 1));
+            Object slot = slots[idx];
+
+            if (slot instanceof Entry) {
+                if (!((Entry) slot).key.equals(key))
+                    return this;
+                return withoutSlot(idx, bit);
+            }
+
+            Node child = (Node) slot;
+            Node newChild = child.remove(key, hash, shift + BITS);
+            if (newChild == child)
+                return this;
+            if (newChild == null)
+                return withoutSlot(idx, bit);
+            // Pull a lone entry up so the trie stays as shallow as possible
+            Entry single = newChild.singleEntry();
+            return withSlot(idx, single != null ? single : newChild);
+        }
+
+        @Override
+        Entry singleEntry() {
+            if (slots.length == 1 && slots[0] instanceof Entry)
+                return (Entry) slots[0];
+            return null;
+        }
+
+        @Override
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (Object slot : slots) {
+                if (slot instanceof Entry)
+                    action.accept(((Entry) slot).key, ((Entry) slot).value);
+                else
+                    ((Node) slot).forEach(action);
+            }
+        }
+
+        private BitmapNode withSlot(int idx, Object slot) {
+            Object[] newSlots = slots.clone();
+            newSlots[idx] = slot;
+            return new BitmapNode(bitmap, newSlots);
+        }
+
+        private BitmapNode withoutSlot(int idx, int bit) {
+            if (slots.length == 1)
+                return null;
+            Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new BitmapNode(bitmap & ~bit, newSlots);
+        }
+
+        /** @return the smallest subtree holding two entries with different keys */
+        private static Node merge(Entry a, Entry b, int shift) {
+            if (shift >= Integer.SIZE)
+                return new CollisionNode(a.hash, new Entry[] { a, b });
+            int posA = (a.hash >>> shift) & MASK;
+            int posB = (b.hash >>> shift) & MASK;
+            if (posA == posB)
+                return new BitmapNode(1 << posA, new Object[] { merge(a, b, shift + BITS) });
+            Object[] slots = posA < posB ? new Object[] { a, b } : new Object[] { b, a };
+            return new BitmapNode((1 << posA) | (1 << posB), slots);
+        }
+    }
+
+    /** Entries whose 32-bit hashes are equal, searched linearly */
+    private static class CollisionNode extends Node {
+        private final int hash;
+        private final Entry[] entries;
+
+        CollisionNode(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        @Override
+        Entry find(UTXO key, byte[] txHash, int index, int hash, int shift) {
+            for (Entry e : entries) {
+                if (matches(e, key, txHash, index))
+                    return e;
+            }
+            return null;
+        }
+
+        @Override
+        Node put(Entry entry, int shift) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(entry.key)) {
+                    if (entries[i].value == entry.value)
+                        return this;
+                    Entry[] newEntries = entries.clone();
+                    newEntries[i] = entry;
+                    return new CollisionNode(hash, newEntries);
+                }
+            }
+            Entry[] newEntries = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            newEntries[entries.length] = entry;
+            return new CollisionNode(hash, newEntries);
+        }
+
+        @Override
+        Node remove(UTXO key, int hash, int shift) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(key)) {
+                    if (entries.length == 1)
+                        return null;
+                    Entry[] newEntries = new Entry[entries.length - 1];
+                    System.arraycopy(entries, 0, newEntries, 0, i);
+                    System.arraycopy(entries, i + 1, newEntries, i, entries.length - i - 1);
+                    return new CollisionNode(hash, newEntries);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        Entry singleEntry() {
+            return entries.length == 1 ? entries[0] : null;
+        }
+
+        @Override
+        void forEach(BiConsumer<UTXO, Transaction.Output> action) {
+            for (Entry e : entries)
+                action.accept(e.key, e.value);
+        }
+    }
+}